@@ -0,0 +1,140 @@
+package com.chip8.emulator;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Fails the build if the emulation hot path allocates. Each bundled ROM is
+ * warmed up until the interpreter, the JIT tier and the JVM have settled,
+ * then a further stretch is run while the thread's allocation counter is
+ * watched. Any byte allocated in steady state is reported and the process
+ * exits non-zero. Streaming a session's frames to a viewer is measured the
+ * same way, since FrameServer encodes on the emulation thread. Run with
+ * gradle checkAllocations, which check depends on.
+ */
+public class AllocationGate {
+
+    private static final long WARMUP = 300_000;
+    private static final long MEASURED = 200_000;
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("Allocation gate skipped: thread allocation counters unsupported");
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        boolean failed = false;
+        for (String rom : new String[] {"PONG", "PONG2", "INVADERS"}) {
+            byte[] program = Main.loadProgram(rom);
+            for (boolean jit : new boolean[] {false, true}) {
+                long allocated = measure(threads, program, jit);
+                String name = rom + (jit ? " (jit)" : "");
+                System.out.println("Allocation gate: " + name + " " + allocated + " bytes over "
+                        + MEASURED + " instructions");
+                if (allocated > 0) {
+                    failed = true;
+                }
+            }
+        }
+        try {
+            long allocated = measureServer(threads, Main.loadProgram("INVADERS"));
+            System.out.println("Allocation gate: INVADERS (streamed) " + allocated + " bytes over "
+                    + MEASURED + " instructions");
+            failed |= allocated > 0;
+        } catch (IOException e) {
+            System.err.println("Allocation gate: could not stream frames: " + e);
+            failed = true;
+        }
+        if (failed) {
+            System.err.println("Allocation gate failed: steady-state emulation allocated memory");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Warm up fresh machines for ROUNDS rounds so every path is compiled,
+     * then return the fewest bytes any single measured stretch allocated.
+     * Taking the minimum filters out one-off work such as a late JIT
+     * compile, while an allocation on every cycle shows in every round.
+     */
+    private static long measure(com.sun.management.ThreadMXBean threads, byte[] program, boolean jit) {
+        long fewest = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            Chip8Machine machine = new Chip8Machine();
+            machine.loadProgram(program);
+            if (jit) {
+                machine.enableJit();
+            }
+            Scheduler.runUnpaced(machine, WARMUP, Scheduler.DEFAULT_IPS);
+
+            long overhead = allocatedBytes(threads) - allocatedBytes(threads);
+            long before = allocatedBytes(threads);
+            Scheduler.runUnpaced(machine, MEASURED, Scheduler.DEFAULT_IPS);
+            long after = allocatedBytes(threads);
+            fewest = Math.min(fewest, Math.max(0, after - before + overhead));
+        }
+        return fewest;
+    }
+
+    /**
+     * As measure, presenting every frame to a FrameServer session with one
+     * viewer reading it and one that never reads, so the session keeps
+     * encoding and its buffer pool runs dry as well.
+     */
+    private static long measureServer(com.sun.management.ThreadMXBean threads, byte[] program)
+            throws IOException {
+        long perTick = Scheduler.DEFAULT_IPS / Scheduler.TIMER_HZ;
+        try (FrameServer server = new FrameServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            Chip8Machine machine = new Chip8Machine();
+            machine.loadProgram(program);
+            FrameSink session = server.session(machine);
+            server.start();
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.port());
+            SocketChannel stalled = SocketChannel.open(address);
+            SocketChannel viewer = SocketChannel.open(address);
+            Thread reader = new Thread(() -> {
+                ByteBuffer in = ByteBuffer.allocate(1 << 16);
+                try {
+                    while (viewer.read(in) >= 0) {
+                        in.clear();
+                    }
+                } catch (IOException e) {
+                    // Closed at the end of the run
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+
+            long fewest = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                for (long run = 0; run < WARMUP; run += perTick) {
+                    Scheduler.runFrame(machine, perTick);
+                    session.present(machine);
+                }
+                long overhead = allocatedBytes(threads) - allocatedBytes(threads);
+                long before = allocatedBytes(threads);
+                for (long run = 0; run < MEASURED; run += perTick) {
+                    Scheduler.runFrame(machine, perTick);
+                    session.present(machine);
+                }
+                long after = allocatedBytes(threads);
+                fewest = Math.min(fewest, Math.max(0, after - before + overhead));
+            }
+            viewer.close();
+            stalled.close();
+            return fewest;
+        }
+    }
+
+    private static long allocatedBytes(com.sun.management.ThreadMXBean threads) {
+        return threads.getCurrentThreadAllocatedBytes();
+    }
+}
@@ -0,0 +1,61 @@
+package com.chip8.emulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the cost of dispatching one instruction through the original
+ * if/else decoder chain against a load from the precomputed OpcodeTable.
+ * The opcode stream is a real trace recorded by running the bundled ROMs,
+ * so the instruction mix matches what the hot loop actually sees.
+ */
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+
+    private static final String[] ROMS = {"PONG", "PONG2", "INVADERS"};
+    private static final int TRACE_LENGTH = 1 << 16;
+
+    private int[] trace;
+
+    @Setup
+    public void recordTrace() {
+        trace = new int[TRACE_LENGTH];
+        int perRom = TRACE_LENGTH / ROMS.length;
+        int n = 0;
+        for (String rom : ROMS) {
+            Chip8Machine machine = new Chip8Machine();
+            machine.loadProgram(Main.loadProgram(rom));
+            for (int c = 0; c < perRom && machine.isRunning(); c++) {
+                machine.emulateCycle();
+                trace[n++] = machine.opcode;
+                if (c % 10 == 9) {
+                    machine.tickTimers();
+                }
+            }
+        }
+        while (n < TRACE_LENGTH) {
+            trace[n] = trace[n % perRom];
+            n++;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRACE_LENGTH)
+    public void chain(Blackhole bh) {
+        for (int opcode : trace) {
+            bh.consume(OpcodeTable.resolve(opcode));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRACE_LENGTH)
+    public void table(Blackhole bh) {
+        for (int opcode : trace) {
+            bh.consume(OpcodeTable.TABLE[opcode].handler);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.chip8.emulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Whole-machine throughput over the real loops of the bundled ROMs, in
+ * nanoseconds per emulated instruction, for the interpreter and the JIT tier.
+ * Each invocation starts from a freshly loaded machine so every run covers
+ * the same stretch of the program.
+ */
+@State(Scope.Thread)
+public class EmulateCycleBenchmark {
+
+    private static final int INSTRUCTIONS = 100_000;
+
+    @Param({"PONG", "PONG2", "INVADERS"})
+    public String rom;
+
+    @Param({"false", "true"})
+    public boolean jit;
+
+    private byte[] program;
+    private Chip8Machine machine;
+
+    @Setup(Level.Trial)
+    public void loadRom() {
+        program = Main.loadProgram(rom);
+    }
+
+    @Setup(Level.Invocation)
+    public void freshMachine() {
+        machine = new Chip8Machine();
+        machine.loadProgram(program);
+        if (jit) {
+            machine.enableJit();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS)
+    public long emulateCycle() {
+        return Scheduler.runUnpaced(machine, INSTRUCTIONS, Scheduler.DEFAULT_IPS);
+    }
+}
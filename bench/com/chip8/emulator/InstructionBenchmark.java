@@ -0,0 +1,78 @@
+package com.chip8.emulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The instructions that dominate game ROMs, each run on its own against
+ * a machine with a sprite and some register values in place.
+ */
+@State(Scope.Thread)
+public class InstructionBenchmark {
+
+    private static final int SCRATCH = 0x300;
+
+    private Chip8Machine machine;
+    private Opcode draw;
+    private Opcode bcd;
+    private Opcode store;
+    private Opcode load;
+    private Opcode random;
+    private int position;
+
+    @Setup
+    public void setUp() {
+        machine = new Chip8Machine();
+        for (int r = 0; r < 16; r++) {
+            machine.gprs[r] = r * 17;
+        }
+        for (int b = 0; b < 16; b++) {
+            machine.memory[SCRATCH + b] = (0xA5 ^ (b * 29)) & 0xFF;
+        }
+        draw = OpcodeTable.TABLE[0xD01F];
+        bcd = OpcodeTable.TABLE[0xF533];
+        store = OpcodeTable.TABLE[0xFF55];
+        load = OpcodeTable.TABLE[0xFF65];
+        random = OpcodeTable.TABLE[0xC3FF];
+    }
+
+    @Benchmark
+    public long iDxyn() {
+        // Walk the sprite across the screen so clipping and wrapping are exercised
+        position = (position + 7) & 0xFF;
+        machine.gprs[0] = position;
+        machine.gprs[1] = position >> 2;
+        machine.i = SCRATCH;
+        Instructions.iDxyn(machine, draw);
+        return machine.displayGrid[machine.gprs[1] & 31];
+    }
+
+    @Benchmark
+    public int iFx33() {
+        machine.i = SCRATCH + 0x40;
+        Instructions.iFx33(machine, bcd);
+        return machine.memory[SCRATCH + 0x42];
+    }
+
+    @Benchmark
+    public int iFx55() {
+        machine.i = SCRATCH + 0x80;
+        Instructions.iFx55(machine, store);
+        return machine.memory[SCRATCH + 0x80];
+    }
+
+    @Benchmark
+    public int iFx65() {
+        machine.i = SCRATCH;
+        Instructions.iFx65(machine, load);
+        return machine.gprs[3];
+    }
+
+    @Benchmark
+    public int iCxkk() {
+        Instructions.iCxkk(machine, random);
+        return machine.gprs[3];
+    }
+}
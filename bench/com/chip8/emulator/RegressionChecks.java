@@ -0,0 +1,299 @@
+package com.chip8.emulator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Fails the build if behaviour that has broken before breaks again. Each
+ * check runs the real classes headless and reports a line per failure;
+ * the process exits non-zero if any failed. Run with gradle
+ * checkRegressions, which check depends on.
+ */
+public class RegressionChecks {
+
+    private static final int FRAMES = 4000;
+    private static final long AUDIO_LATENCY_LIMIT = 250_000_000L;
+
+    private static int failures;
+
+    public static void main(String[] args) {
+        saveStateKeepsWideValues();
+        bcdStoresBytes();
+        saveStateRoundTripsEveryFrame("PONG");
+        saveStateRoundTripsEveryFrame("PONG2");
+        rewindRestoresWideValues();
+        rewindReturnsToEarlierFrames("PONG");
+        conformanceSkipsSidecars();
+        conformanceReplaysAsRecorded();
+        headlessAudioThroughNullOutput();
+        if (failures > 0) {
+            System.err.println("Regression checks failed: " + failures);
+            System.exit(1);
+        }
+        System.out.println("Regression checks passed");
+    }
+
+    /**
+     * Registers, timers and the stack hold values outside a byte, since
+     * 7xkk, 8xy7 and 8xyE do not mask, and a save state must keep them.
+     */
+    private static void saveStateKeepsWideValues() {
+        Chip8Machine machine = wideMachine();
+        Chip8Machine restored = new Chip8Machine();
+        SaveState.restore(restored, SaveState.save(machine));
+        check(sameState(machine, restored), "save state truncated values outside a byte");
+    }
+
+    /**
+     * Saving and restoring between every frame must not change how a game plays.
+     */
+    private static void saveStateRoundTripsEveryFrame(String rom) {
+        byte[] program = Main.loadProgram(rom);
+        Chip8Machine straight = new Chip8Machine();
+        Chip8Machine restored = new Chip8Machine();
+        straight.loadProgram(program);
+        restored.loadProgram(program);
+        straight.setSeed(1);
+        restored.setSeed(1);
+        Random keys = new Random(1);
+        long perTick = Scheduler.DEFAULT_IPS / Scheduler.TIMER_HZ;
+        for (int frame = 0; frame < FRAMES; frame++) {
+            if (frame % 30 == 0) {
+                int mask = 1 << keys.nextInt(16);
+                straight.setKeypad(mask);
+                restored.setKeypad(mask);
+            }
+            Scheduler.runFrame(straight, perTick);
+            Scheduler.runFrame(restored, perTick);
+            SaveState.restore(restored, SaveState.save(restored));
+            if (!sameState(straight, restored)) {
+                check(false, rom + " diverged from an uninterrupted run at frame " + frame
+                        + " when saved and restored every frame");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Rewinding builds on save states, so it must keep wide values too.
+     */
+    private static void rewindRestoresWideValues() {
+        Chip8Machine machine = wideMachine();
+        Chip8Machine expected = wideMachine();
+        RewindBuffer rewind = new RewindBuffer(2 * RewindBuffer.KEYFRAME_INTERVAL, 4 << 20);
+        rewind.record(machine);
+        machine.gprs[0] = 5;
+        machine.delayTimer = 0;
+        rewind.record(machine);
+        rewind.rewind(machine, 1);
+        check(sameState(expected, machine), "rewind truncated values outside a byte");
+    }
+
+    /**
+     * Play with every frame recorded, then rewind across keyframes and
+     * check each frame reached matches a save state taken at the time.
+     */
+    private static void rewindReturnsToEarlierFrames(String rom) {
+        int frames = 3 * RewindBuffer.KEYFRAME_INTERVAL;
+        Chip8Machine machine = new Chip8Machine();
+        machine.loadProgram(Main.loadProgram(rom));
+        machine.setSeed(1);
+        RewindBuffer rewind = new RewindBuffer(frames, 4 << 20);
+        byte[][] states = new byte[frames][];
+        long perTick = Scheduler.DEFAULT_IPS / Scheduler.TIMER_HZ;
+        for (int frame = 0; frame < frames; frame++) {
+            machine.setKeypad(frame % 40 < 20 ? 1 << 1 : 1 << 4);
+            Scheduler.runFrame(machine, perTick);
+            rewind.record(machine);
+            states[frame] = SaveState.save(machine);
+        }
+        for (int frame = frames - 1; frame > 0; frame -= 7) {
+            Chip8Machine expected = new Chip8Machine();
+            SaveState.restore(expected, states[frame - 7 < 0 ? 0 : frame - 7]);
+            rewind.rewind(machine, Math.min(7, frame));
+            if (!sameState(expected, machine)) {
+                check(false, rom + " rewound to the wrong state at frame " + Math.max(0, frame - 7));
+                return;
+            }
+        }
+    }
+
+    /**
+     * A corpus directory holding a ROM, its .c8i recording and the goldens
+     * file must come out as one ROM that passes against its own goldens.
+     * The goldens file is named like a ROM, so only the runner can skip it.
+     */
+    private static void conformanceSkipsSidecars() {
+        Path corpus = null;
+        try {
+            corpus = Files.createTempDirectory("chip8-corpus");
+            byte[] program = Main.loadProgram("PONG2");
+            Files.write(corpus.resolve("PONG2"), program);
+            try (InputRecorder recorder = new InputRecorder(corpus.resolve("PONG2.c8i"), 1,
+                    Scheduler.DEFAULT_IPS, program)) {
+                for (int frame = 0; frame < 600; frame++) {
+                    recorder.frame(frame % 120 < 60 ? 1 << 1 : 0);
+                }
+            }
+            Path goldens = corpus.resolve("goldens");
+            ConformanceRunner runner = new ConformanceRunner(1, 100_000, Scheduler.DEFAULT_IPS, false);
+
+            ConformanceRunner.writeGoldens(goldens, List.of());
+            List<Rom> roms = ConformanceRunner.withoutGoldens(new RomLibrary().load(corpus), goldens);
+            check(roms.size() == 1, "conformance corpus with a sidecar held " + roms.size() + " ROMs, not 1");
+            List<ConformanceRunner.Result> results = runner.run(roms);
+            ConformanceRunner.writeGoldens(goldens, results);
+
+            roms = ConformanceRunner.withoutGoldens(new RomLibrary().load(corpus), goldens);
+            Map<String, String> expected = ConformanceRunner.readGoldens(goldens);
+            for (ConformanceRunner.Result result : runner.run(roms)) {
+                check(result.error == null && result.fingerprint().equals(expected.get(result.rom.hash())),
+                        "conformance did not pass " + result.rom.name() + " against its own goldens");
+            }
+        } catch (IOException e) {
+            check(false, "conformance corpus check failed: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            delete(corpus);
+        }
+    }
+
+    private static void delete(Path directory) {
+        if (directory == null) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException e) {
+            // Only a temporary directory left behind
+        }
+    }
+
+    /**
+     * A ROM's recording plays at the rate it was recorded at, whatever the
+     * runner's own rate, and only against the ROM it was recorded with.
+     */
+    private static void conformanceReplaysAsRecorded() {
+        Path corpus = null;
+        try {
+            corpus = Files.createTempDirectory("chip8-recorded");
+            byte[] program = Main.loadProgram("PONG2");
+            Files.write(corpus.resolve("PONG2"), program);
+            Files.write(corpus.resolve("PONG"), Main.loadProgram("PONG"));
+            for (String name : new String[] {"PONG2.c8i", "PONG.c8i"}) {
+                try (InputRecorder recorder = new InputRecorder(corpus.resolve(name), 1,
+                        2 * Scheduler.DEFAULT_IPS, program)) {
+                    for (int frame = 0; frame < 600; frame++) {
+                        recorder.frame(frame % 90 < 45 ? 1 << 1 : 1 << 4);
+                    }
+                }
+            }
+            List<Rom> roms = new RomLibrary().load(corpus);
+            List<ConformanceRunner.Result> atRecorded =
+                    new ConformanceRunner(1, 100_000, 2 * Scheduler.DEFAULT_IPS, false).run(roms);
+            List<ConformanceRunner.Result> atDefault =
+                    new ConformanceRunner(1, 100_000, Scheduler.DEFAULT_IPS, false).run(roms);
+            for (int r = 0; r < roms.size(); r++) {
+                ConformanceRunner.Result result = atDefault.get(r);
+                if (result.rom.name().endsWith("PONG2")) {
+                    check(result.error == null && result.fingerprint().equals(atRecorded.get(r).fingerprint()),
+                            "conformance replayed a recording at the runner's rate, not its own");
+                } else {
+                    check(result.error != null, "conformance replayed a recording made with another ROM");
+                }
+            }
+        } catch (IOException e) {
+            check(false, "conformance recording check failed: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            delete(corpus);
+        }
+    }
+
+    /**
+     * A headless run with audio must reach the audio thread. The program
+     * beeps for 3 frames every 8; half a second of it through the null
+     * output should hear every beep, each well within a few frames.
+     */
+    private static void headlessAudioThroughNullOutput() {
+        byte[] beeper = {
+            0x60, 0x03, (byte) 0xF0, 0x18,         // V0 = 3, sound timer = V0
+            0x61, 0x08, (byte) 0xF1, 0x15,         // V1 = 8, delay timer = V1
+            (byte) 0xF1, 0x07, 0x31, 0x00, 0x12, 0x08, // wait for the delay timer
+            0x12, 0x00
+        };
+        Chip8Machine machine = new Chip8Machine();
+        machine.loadProgram(beeper);
+        long perTick = Scheduler.DEFAULT_IPS / Scheduler.TIMER_HZ;
+        Audio audio = new Audio(Audio.nullOutput());
+        try {
+            Scheduler.runRealTime(machine, Scheduler.TIMER_HZ / 2 * perTick, Scheduler.DEFAULT_IPS, audio::update);
+        } finally {
+            // Joins the audio thread, so every beep is in the histogram below
+            audio.close();
+        }
+        Histogram latency = audio.latency();
+        check(latency.count() >= 3, "headless audio heard " + latency.count() + " of 4 beeps");
+        check(latency.max() < AUDIO_LATENCY_LIMIT, "headless audio took "
+                + latency.max() / 1_000_000 + " ms to sound a beep");
+    }
+
+    /**
+     * Fx33 of a register outside 0 to 255 must still leave bytes in
+     * memory, which is all a save state keeps of it.
+     */
+    private static void bcdStoresBytes() {
+        for (int value : new int[] {-3, 0x104, 100_000}) {
+            Chip8Machine machine = new Chip8Machine();
+            machine.gprs[5] = value;
+            machine.i = 0x300;
+            Instructions.iFx33(machine, OpcodeTable.TABLE[0xF533]);
+            for (int a = 0x300; a < 0x303; a++) {
+                check(machine.memory[a] >= 0 && machine.memory[a] <= 0xFF,
+                        "Fx33 of " + value + " stored " + machine.memory[a] + " at " + Integer.toHexString(a));
+            }
+        }
+    }
+
+    /**
+     * A machine with every int field set to something a byte cannot hold,
+     * and memory bytes with the top bit set.
+     */
+    static Chip8Machine wideMachine() {
+        Chip8Machine machine = new Chip8Machine();
+        machine.gprs[0] = 0x104;
+        machine.gprs[1] = -3;
+        machine.gprs[14] = 318;
+        machine.delayTimer = 260;
+        machine.soundTimer = 300;
+        machine.i = 0x1FFFF;
+        machine.stackPointer = -1;
+        machine.stack[15] = 0x12345;
+        machine.memory[0x300] = 0xF9;
+        machine.memory[0x301] = 0x80;
+        return machine;
+    }
+
+    static boolean sameState(Chip8Machine a, Chip8Machine b) {
+        return a.pc == b.pc && a.i == b.i && a.stackPointer == b.stackPointer
+                && a.delayTimer == b.delayTimer && a.soundTimer == b.soundTimer
+                && Arrays.equals(a.gprs, b.gprs) && Arrays.equals(a.stack, b.stack)
+                && Arrays.equals(a.memory, b.memory) && Arrays.equals(a.displayGrid, b.displayGrid);
+    }
+
+    static void check(boolean passed, String failure) {
+        if (!passed) {
+            failures++;
+            System.err.println("FAIL: " + failure);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.chip8.emulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of drawing the display into the off-screen image, for a full
+ * repaint and for the common case of a single changed sprite.
+ */
+@State(Scope.Thread)
+public class RenderBenchmark {
+
+    private Chip8Machine machine;
+    private Renderer renderer;
+
+    @Setup
+    public void setUp() {
+        machine = new Chip8Machine();
+        machine.loadProgram(Main.loadProgram("PONG2"));
+        Scheduler.runUnpaced(machine, 50_000, Scheduler.DEFAULT_IPS);
+        renderer = new Renderer(8);
+        renderer.render(machine);
+    }
+
+    @Benchmark
+    public boolean fullFrame() {
+        machine.markDirty(0, 31);
+        return renderer.render(machine);
+    }
+
+    @Benchmark
+    public boolean spriteRows() {
+        machine.markDirty(12, 17);
+        return renderer.render(machine);
+    }
+
+    @Benchmark
+    public boolean unchanged() {
+        return renderer.render(machine);
+    }
+}
@@ -0,0 +1,190 @@
+package com.chip8.emulator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Plays the sound timer's tone. The emulation thread only calls update
+ * once a frame, which sets a flag; a dedicated audio thread writes CHUNK
+ * samples at a time to the output, straight out of a precomputed square
+ * wave or silence, and is paced by the output blocking when full. The
+ * emulation thread never touches the audio line.
+ *
+ * The output holds at most OUTPUT_CHUNKS chunks, so a tone becomes
+ * audible at most a frame after Fx18 (until update sees it), plus one
+ * chunk being written, plus the output buffer: about 46 ms at 60 frames a
+ * second. The time from update to the first tone sample leaving the output
+ * is measured for every beep, see latency.
+ *
+ * The null output consumes samples at the same rate as a sound card
+ * without playing them, which keeps the timing and the latency measurement
+ * meaningful on a machine without a sound device.
+ */
+final class Audio implements AutoCloseable {
+
+    static final int SAMPLE_RATE = 44100;
+    static final int TONE_HZ = 441;
+    static final int CHUNK = 256;
+    static final int OUTPUT_CHUNKS = 4;
+
+    private static final int PERIOD = SAMPLE_RATE / TONE_HZ;
+    private static final byte VOLUME = 24;
+    private static final AudioFormat FORMAT = new AudioFormat(SAMPLE_RATE, 8, 1, true, false);
+
+    /**
+     * A chunk can start at any phase of the wave, so the tone holds one
+     * period more than a chunk.
+     */
+    private static final byte[] TONE = new byte[CHUNK + PERIOD];
+    private static final byte[] SILENCE = new byte[CHUNK];
+
+    static {
+        for (int s = 0; s < TONE.length; s++) {
+            TONE[s] = s % PERIOD < PERIOD / 2 ? VOLUME : (byte) -VOLUME;
+        }
+    }
+
+    /**
+     * Where the samples go. write blocks while the output is full.
+     */
+    interface Output {
+        void write(byte[] samples, int offset, int length);
+
+        /**
+         * Samples played so far.
+         */
+        long position();
+
+        void close();
+    }
+
+    private final Output output;
+    private final Thread thread;
+    private final Histogram latency = new Histogram();
+    private final AtomicLong requestedAt = new AtomicLong();
+    private volatile boolean on;
+    private volatile boolean running = true;
+    private long lastSoundTicks;
+
+    Audio(Output output) {
+        this.output = output;
+        thread = new Thread(this::play, "chip8-audio");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * The default sound device, opened with a buffer of OUTPUT_CHUNKS chunks.
+     */
+    static Output line() throws LineUnavailableException {
+        SourceDataLine line = AudioSystem.getSourceDataLine(FORMAT);
+        line.open(FORMAT, CHUNK * OUTPUT_CHUNKS);
+        line.start();
+        return new Output() {
+            @Override
+            public void write(byte[] samples, int offset, int length) {
+                line.write(samples, offset, length);
+            }
+
+            @Override
+            public long position() {
+                return line.getLongFramePosition();
+            }
+
+            @Override
+            public void close() {
+                line.stop();
+                line.close();
+            }
+        };
+    }
+
+    /**
+     * An output that plays nothing but takes samples at SAMPLE_RATE, with
+     * the same buffer as line.
+     */
+    static Output nullOutput() {
+        return new Output() {
+            private final long start = System.nanoTime();
+            private long written;
+
+            @Override
+            public void write(byte[] samples, int offset, int length) {
+                written += length;
+                // Block until the buffer would have room, as a line does
+                long due = start + (written - CHUNK * OUTPUT_CHUNKS) * 1_000_000_000L / SAMPLE_RATE;
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+
+            @Override
+            public long position() {
+                long played = (System.nanoTime() - start) * SAMPLE_RATE / 1_000_000_000L;
+                return Math.min(played, written);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Called on the emulation thread once a frame: sound while the sound
+     * timer is running or has run since the last call.
+     */
+    void update(Chip8Machine machine) {
+        boolean sounding = machine.soundTimer > 0 || machine.soundTicks != lastSoundTicks;
+        lastSoundTicks = machine.soundTicks;
+        if (sounding && !on) {
+            requestedAt.set(System.nanoTime());
+        }
+        on = sounding;
+    }
+
+    /**
+     * Nanoseconds from update turning the tone on until its first sample
+     * is played.
+     */
+    Histogram latency() {
+        return latency;
+    }
+
+    private void play() {
+        long written = 0;
+        int phase = 0;
+        while (running) {
+            if (on) {
+                long requested = requestedAt.getAndSet(0);
+                if (requested != 0) {
+                    long queued = written - output.position();
+                    latency.record(System.nanoTime() + queued * 1_000_000_000L / SAMPLE_RATE - requested);
+                }
+                output.write(TONE, phase, CHUNK);
+                phase = (phase + CHUNK) % PERIOD;
+            } else {
+                output.write(SILENCE, 0, CHUNK);
+                phase = 0;
+            }
+            written += CHUNK;
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        output.close();
+    }
+}
@@ -0,0 +1,549 @@
+package com.chip8.emulator;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Translates a Chip8 basic block into a hidden class implementing CompiledBlock.
+ * A block runs from its start address up to and including the first instruction
+ * that may leave straight-line code: a jump, call, return, skip, Fx0A, or a
+ * memory write (Fx33, Fx55) that could rewrite the block itself.
+ *
+ * Register arithmetic that needs no branches (6xkk, 7xkk, 8xy0-8xy3, Annn,
+ * Fx07, Fx15, Fx18, Fx1E, Fx29) is emitted inline as field and array accesses
+ * on the machine, as are a closing 1nnn or register skip. Every other
+ * instruction calls back into its normal handler, with pc set first so calls
+ * and returns see exactly what the interpreter would. The generated code has
+ * no branches of its own, so no stack map frames are needed.
+ */
+final class BlockCompiler {
+
+    static final int MAX_BLOCK_LENGTH = 64;
+
+    private static final String MACHINE = "com/chip8/emulator/Chip8Machine";
+    private static final String COMPILER = "com/chip8/emulator/BlockCompiler";
+
+    private static final int ALOAD_0 = 0x2A;
+    private static final int ALOAD_1 = 0x2B;
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int IALOAD = 0x2E;
+    private static final int IASTORE = 0x4F;
+    private static final int DUP = 0x59;
+    private static final int DUP2 = 0x5C;
+    private static final int IADD = 0x60;
+    private static final int ISUB = 0x64;
+    private static final int IMUL = 0x68;
+    private static final int INEG = 0x74;
+    private static final int ISHL = 0x78;
+    private static final int IUSHR = 0x7C;
+    private static final int IAND = 0x7E;
+    private static final int IOR = 0x80;
+    private static final int IXOR = 0x82;
+    private static final int RETURN = 0xB1;
+    private static final int GETFIELD = 0xB4;
+    private static final int PUTFIELD = 0xB5;
+    private static final int INVOKESPECIAL = 0xB7;
+    private static final int INVOKESTATIC = 0xB8;
+
+    private BlockCompiler() {
+    }
+
+    /**
+     * Called from generated code for every instruction that is not inlined.
+     */
+    static void execute(Chip8Machine m, int opcode) {
+        Opcode op = OpcodeTable.TABLE[opcode];
+        m.opcode = opcode;
+        op.handler.execute(m, op);
+    }
+
+    static int word(int[] memory, int address) {
+        return ((memory[address] << 8) & 0xFF00) + (memory[address + 1] & 0xFF);
+    }
+
+    /**
+     * Number of instructions in the block starting at start.
+     */
+    static int scan(int[] memory, int start) {
+        int address = start;
+        int length = 0;
+        while (length < MAX_BLOCK_LENGTH && address + 1 < memory.length) {
+            int opcode = word(memory, address);
+            length++;
+            address += 2;
+            if (endsBlock(opcode)) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Mirrors OpcodeTable.resolve: anything that can move pc somewhere other than
+     * the next instruction, or that writes memory, ends the block.
+     */
+    static boolean endsBlock(int opcode) {
+        switch (opcode & 0xF000) {
+            case 0x0000:
+                return opcode != 0x00E0;
+            case 0x1000:
+            case 0x2000:
+            case 0x3000:
+            case 0x4000:
+            case 0x5000:
+            case 0xB000:
+                return true;
+            case 0x9000:
+                return (opcode & 0xF00F) == 0x9000;
+            case 0xE000:
+                return (opcode & 0xF0FF) == 0xE09E || (opcode & 0xF0FF) == 0xE0A1;
+            case 0xF000:
+                int lsByte = opcode & 0x00FF;
+                return lsByte == 0x0A || lsByte == 0x33 || lsByte == 0x55;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Generate and define the class for the length instructions starting at start.
+     */
+    static CompiledBlock compile(int[] memory, int start, int length) {
+        byte[] classFile = generate(memory, start, length);
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+            return (CompiledBlock) lookup.findConstructor(lookup.lookupClass(),
+                    MethodType.methodType(void.class)).invoke();
+        } catch (Throwable t) {
+            throw new IllegalStateException("Could not define block at 0x" + Integer.toHexString(start), t);
+        }
+    }
+
+    private static byte[] generate(int[] memory, int start, int length) {
+        ConstantPool cp = new ConstantPool();
+        int thisClass = cp.classRef("com/chip8/emulator/Block$" + Integer.toHexString(start));
+        int superClass = cp.classRef("java/lang/Object");
+        int blockInterface = cp.classRef("com/chip8/emulator/CompiledBlock");
+        int code = cp.utf8("Code");
+        int objectInit = cp.methodRef("java/lang/Object", "<init>", "()V");
+
+        Bytes init = new Bytes();
+        init.u1(ALOAD_0);
+        init.u1(INVOKESPECIAL);
+        init.u2(objectInit);
+        init.u1(RETURN);
+
+        Bytes run = new Bytes();
+        int address = start;
+        boolean last = false;
+        for (int n = 0; n < length && !last; n++) {
+            int opcode = word(memory, address);
+            last = endsBlock(opcode);
+            if (!(last && emitBranch(run, cp, opcode, address))) {
+                if (!emitInline(run, cp, opcode)) {
+                    setPc(run, cp, address);
+                    run.u1(ALOAD_1);
+                    pushInt(run, cp, opcode);
+                    run.u1(INVOKESTATIC);
+                    run.u2(cp.methodRef(COMPILER, "execute", "(L" + MACHINE + ";I)V"));
+                }
+                if (last) {
+                    // pc += 2, as emulateCycle does after every instruction
+                    run.u1(ALOAD_1);
+                    run.u1(DUP);
+                    run.u1(GETFIELD);
+                    run.u2(cp.fieldRef(MACHINE, "pc", "I"));
+                    run.u1(ICONST_0 + 2);
+                    run.u1(IADD);
+                    run.u1(PUTFIELD);
+                    run.u2(cp.fieldRef(MACHINE, "pc", "I"));
+                }
+            }
+            address += 2;
+        }
+        if (!last) {
+            setPc(run, cp, address);
+        }
+        run.u1(RETURN);
+
+        int initName = cp.utf8("<init>");
+        int initType = cp.utf8("()V");
+        int runName = cp.utf8("run");
+        int runType = cp.utf8("(L" + MACHINE + ";)V");
+
+        Bytes out = new Bytes();
+        out.u4(0xCAFEBABE);
+        out.u2(0);
+        out.u2(61);
+        out.u2(cp.count);
+        out.bytes(cp.bytes);
+        out.u2(0x0010 | 0x0020);
+        out.u2(thisClass);
+        out.u2(superClass);
+        out.u2(1);
+        out.u2(blockInterface);
+        out.u2(0);
+        out.u2(2);
+        method(out, 0x0001, initName, initType, code, 1, 1, init);
+        method(out, 0x0001, runName, runType, code, 6, 2, run);
+        out.u2(0);
+        return out.toByteArray();
+    }
+
+    /**
+     * Emit a jump or skip that ends the block as a direct store of its final pc.
+     * Skip conditions are computed without branches: for d = a - b the value
+     * (d | -d) >>> 31 is 0 when a == b and 1 otherwise. Each form reproduces its
+     * handler exactly.
+     */
+    private static boolean emitBranch(Bytes run, ConstantPool cp, int opcode, int address) {
+        int x = (opcode & 0x0F00) >> 8;
+        int y = (opcode & 0x00F0) >> 4;
+        int kk = opcode & 0x00FF;
+        switch (opcode & 0xF000) {
+            case 0x1000:
+                setPc(run, cp, opcode & 0x0FFF);
+                return true;
+            case 0x3000:
+                // skip if Vx == kk
+                run.u1(ALOAD_1);
+                pushInt(run, cp, address + 4);
+                notEqual(run, cp, x, -1, kk);
+                run.u1(ICONST_0 + 1);
+                run.u1(ISHL);
+                run.u1(ISUB);
+                break;
+            case 0x4000:
+                // skip if Vx != kk
+                run.u1(ALOAD_1);
+                pushInt(run, cp, address + 2);
+                notEqual(run, cp, x, -1, kk);
+                run.u1(ICONST_0 + 1);
+                run.u1(ISHL);
+                run.u1(IADD);
+                break;
+            case 0x5000:
+                // skip if Vx == Vy
+                run.u1(ALOAD_1);
+                pushInt(run, cp, address + 4);
+                notEqual(run, cp, x, y, 0);
+                run.u1(ICONST_0 + 1);
+                run.u1(ISHL);
+                run.u1(ISUB);
+                break;
+            case 0x9000:
+                if ((opcode & 0xF00F) != 0x9000) {
+                    return false;
+                }
+                // skip if Vx != Vy
+                run.u1(ALOAD_1);
+                pushInt(run, cp, address + 2);
+                notEqual(run, cp, x, y, 0);
+                run.u1(ICONST_0 + 1);
+                run.u1(ISHL);
+                run.u1(IADD);
+                break;
+            default:
+                return false;
+        }
+        run.u1(PUTFIELD);
+        run.u2(cp.fieldRef(MACHINE, "pc", "I"));
+        return true;
+    }
+
+    /**
+     * Push 1 if V[x] differs from V[y] (or from constant when y is -1), else 0.
+     */
+    private static void notEqual(Bytes run, ConstantPool cp, int x, int y, int constant) {
+        gprs(run, cp);
+        pushInt(run, cp, x);
+        run.u1(IALOAD);
+        if (y < 0) {
+            pushInt(run, cp, constant);
+        } else {
+            gprs(run, cp);
+            pushInt(run, cp, y);
+            run.u1(IALOAD);
+        }
+        run.u1(ISUB);
+        run.u1(DUP);
+        run.u1(INEG);
+        run.u1(IOR);
+        pushInt(run, cp, 31);
+        run.u1(IUSHR);
+    }
+
+    /**
+     * Emit the instruction directly if it is straight-line register arithmetic.
+     */
+    private static boolean emitInline(Bytes run, ConstantPool cp, int opcode) {
+        int x = (opcode & 0x0F00) >> 8;
+        int y = (opcode & 0x00F0) >> 4;
+        int kk = opcode & 0x00FF;
+        int nnn = opcode & 0x0FFF;
+        switch (opcode & 0xF000) {
+            case 0x6000:
+                // V[x] = kk
+                gprs(run, cp);
+                pushInt(run, cp, x);
+                pushInt(run, cp, kk);
+                run.u1(IASTORE);
+                return true;
+            case 0x7000:
+                // V[x] += kk
+                gprs(run, cp);
+                pushInt(run, cp, x);
+                run.u1(DUP2);
+                run.u1(IALOAD);
+                pushInt(run, cp, kk);
+                run.u1(IADD);
+                run.u1(IASTORE);
+                return true;
+            case 0x8000:
+                int n = opcode & 0x000F;
+                if (n > 3) {
+                    return false;
+                }
+                // V[x] = V[y] or V[x] op V[y]
+                gprs(run, cp);
+                pushInt(run, cp, x);
+                if (n != 0) {
+                    run.u1(DUP2);
+                    run.u1(IALOAD);
+                }
+                gprs(run, cp);
+                pushInt(run, cp, y);
+                run.u1(IALOAD);
+                if (n == 1) {
+                    run.u1(IOR);
+                } else if (n == 2) {
+                    run.u1(IAND);
+                } else if (n == 3) {
+                    run.u1(IXOR);
+                }
+                run.u1(IASTORE);
+                return true;
+            case 0xA000:
+                // I = nnn
+                run.u1(ALOAD_1);
+                pushInt(run, cp, nnn);
+                run.u1(PUTFIELD);
+                run.u2(cp.fieldRef(MACHINE, "i", "I"));
+                return true;
+            case 0xF000:
+                return emitInlineF(run, cp, x, kk);
+            default:
+                return false;
+        }
+    }
+
+    private static boolean emitInlineF(Bytes run, ConstantPool cp, int x, int lsByte) {
+        switch (lsByte) {
+            case 0x07:
+                // V[x] = delayTimer
+                gprs(run, cp);
+                pushInt(run, cp, x);
+                run.u1(ALOAD_1);
+                run.u1(GETFIELD);
+                run.u2(cp.fieldRef(MACHINE, "delayTimer", "I"));
+                run.u1(IASTORE);
+                return true;
+            case 0x15:
+            case 0x18:
+                // delayTimer or soundTimer = V[x]
+                run.u1(ALOAD_1);
+                gprs(run, cp);
+                pushInt(run, cp, x);
+                run.u1(IALOAD);
+                run.u1(PUTFIELD);
+                run.u2(cp.fieldRef(MACHINE, lsByte == 0x15 ? "delayTimer" : "soundTimer", "I"));
+                return true;
+            case 0x1E:
+                // I = (I + V[x]) & 0xFFFF
+                run.u1(ALOAD_1);
+                run.u1(DUP);
+                run.u1(GETFIELD);
+                run.u2(cp.fieldRef(MACHINE, "i", "I"));
+                gprs(run, cp);
+                pushInt(run, cp, x);
+                run.u1(IALOAD);
+                run.u1(IADD);
+                pushInt(run, cp, 0xFFFF);
+                run.u1(IAND);
+                run.u1(PUTFIELD);
+                run.u2(cp.fieldRef(MACHINE, "i", "I"));
+                return true;
+            case 0x29:
+                // I = V[x] * 5
+                run.u1(ALOAD_1);
+                gprs(run, cp);
+                pushInt(run, cp, x);
+                run.u1(IALOAD);
+                pushInt(run, cp, 5);
+                run.u1(IMUL);
+                run.u1(PUTFIELD);
+                run.u2(cp.fieldRef(MACHINE, "i", "I"));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void gprs(Bytes run, ConstantPool cp) {
+        run.u1(ALOAD_1);
+        run.u1(GETFIELD);
+        run.u2(cp.fieldRef(MACHINE, "gprs", "[I"));
+    }
+
+    private static void setPc(Bytes run, ConstantPool cp, int address) {
+        run.u1(ALOAD_1);
+        pushInt(run, cp, address);
+        run.u1(PUTFIELD);
+        run.u2(cp.fieldRef(MACHINE, "pc", "I"));
+    }
+
+    private static void pushInt(Bytes run, ConstantPool cp, int value) {
+        if (value >= -1 && value <= 5) {
+            run.u1(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            run.u1(BIPUSH);
+            run.u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            run.u1(SIPUSH);
+            run.u2(value);
+        } else {
+            run.u1(LDC_W);
+            run.u2(cp.integer(value));
+        }
+    }
+
+    private static void method(Bytes out, int access, int name, int type, int codeName,
+                               int maxStack, int maxLocals, Bytes code) {
+        out.u2(access);
+        out.u2(name);
+        out.u2(type);
+        out.u2(1);
+        out.u2(codeName);
+        out.u4(12 + code.size());
+        out.u2(maxStack);
+        out.u2(maxLocals);
+        out.u4(code.size());
+        out.bytes(code);
+        out.u2(0);
+        out.u2(0);
+    }
+
+    /**
+     * Big-endian byte sink for class file structures.
+     */
+    private static final class Bytes extends ByteArrayOutputStream {
+
+        void u1(int value) {
+            write(value);
+        }
+
+        void u2(int value) {
+            write(value >>> 8);
+            write(value);
+        }
+
+        void u4(int value) {
+            u2(value >>> 16);
+            u2(value);
+        }
+
+        void bytes(Bytes other) {
+            write(other.buf, 0, other.count);
+        }
+    }
+
+    /**
+     * Deduplicating constant pool. Only the entry kinds a block needs are supported.
+     */
+    private static final class ConstantPool {
+
+        final Bytes bytes = new Bytes();
+        private final Map<String, Integer> entries = new HashMap<>();
+        int count = 1;
+
+        int utf8(String value) {
+            Integer index = entries.get("U" + value);
+            if (index != null) {
+                return index;
+            }
+            byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            bytes.u1(1);
+            bytes.u2(encoded.length);
+            bytes.write(encoded, 0, encoded.length);
+            return add("U" + value);
+        }
+
+        int integer(int value) {
+            Integer index = entries.get("I" + value);
+            if (index != null) {
+                return index;
+            }
+            bytes.u1(3);
+            bytes.u4(value);
+            return add("I" + value);
+        }
+
+        int classRef(String name) {
+            Integer index = entries.get("C" + name);
+            if (index != null) {
+                return index;
+            }
+            int nameIndex = utf8(name);
+            bytes.u1(7);
+            bytes.u2(nameIndex);
+            return add("C" + name);
+        }
+
+        int fieldRef(String owner, String name, String descriptor) {
+            return memberRef(9, owner, name, descriptor);
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            return memberRef(10, owner, name, descriptor);
+        }
+
+        private int memberRef(int tag, String owner, String name, String descriptor) {
+            String key = tag + owner + "." + name + ":" + descriptor;
+            Integer index = entries.get(key);
+            if (index != null) {
+                return index;
+            }
+            int ownerIndex = classRef(owner);
+            int nameAndType = nameAndType(name, descriptor);
+            bytes.u1(tag);
+            bytes.u2(ownerIndex);
+            bytes.u2(nameAndType);
+            return add(key);
+        }
+
+        private int nameAndType(String name, String descriptor) {
+            Integer index = entries.get("N" + name + ":" + descriptor);
+            if (index != null) {
+                return index;
+            }
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            bytes.u1(12);
+            bytes.u2(nameIndex);
+            bytes.u2(descriptorIndex);
+            return add("N" + name + ":" + descriptor);
+        }
+
+        private int add(String key) {
+            entries.put(key, count);
+            return count++;
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package com.chip8.emulator;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single Chip8 machine. All state is owned by the instance so any number
+ * of machines can live in one JVM. A machine is not thread-safe; it must be
+ * stepped by one thread at a time, MachinePool takes care of that.
+ */
+public class Chip8Machine {
+
+    int pc;
+    int i;
+    int opcode;
+    int[] memory;
+    int[] gprs;
+    int[] stack;
+    int stackPointer;
+    int delayTimer;
+    int soundTimer;
+
+    /**
+     * Timer ticks so far with the sound timer running, so a beep shorter
+     * than a frame is still seen by whoever polls once a frame.
+     */
+    long soundTicks;
+
+    /**
+     * One long per display row, the leftmost pixel in the most significant bit.
+     */
+    long[] displayGrid;
+
+    /**
+     * Set by 00E0 and Dxyn together with the range of rows they touched,
+     * cleared by whoever presents the frame.
+     */
+    private boolean frameDirty;
+    private int dirtyTop;
+    private int dirtyBottom;
+
+    /**
+     * The keypad as a 16 bit mask, bit k set while key k is down, plus the
+     * keys pressed since Fx0A last looked. Both are written from the input
+     * thread and read by the emulation thread, hence atomic.
+     */
+    final AtomicInteger keypad = new AtomicInteger();
+    final AtomicInteger pressedKeys = new AtomicInteger();
+
+    /**
+     * Set while Fx0A is waiting for a key. keyWaiter is the emulation
+     * thread, unparked by the next key press.
+     */
+    boolean waitingForKey;
+    private volatile Thread keyWaiter;
+
+    /**
+     * Set by Fx07 when it starts a delay timer wait loop, see isIdleLoop.
+     * The rest of the run is then skipped instead of spun, and the count
+     * of instructions skipped that way is kept in idleInstructions.
+     */
+    boolean idle;
+    private long idleInstructions;
+
+    /**
+     * While latched, key events collect in incoming and only reach the
+     * keypad when latchKeypad is called between frames. The program then
+     * sees input change at exact instruction counts, which is what makes a
+     * recorded session replay identically. A key tapped within one frame
+     * still shows as down for that frame.
+     */
+    private volatile boolean latched;
+    private final AtomicInteger incoming = new AtomicInteger();
+    private final AtomicInteger incomingPressed = new AtomicInteger();
+
+    /**
+     * Predecoded instructions keyed by address. An entry is filled the first
+     * time its address is executed and cleared whenever either of its two
+     * bytes is written, so self-modifying programs stay correct.
+     */
+    private final Opcode[] decoded = new Opcode[4096];
+
+    /**
+     * Source of Cxkk's random bytes, one per machine so the
+     * instruction does not allocate a generator every time it runs.
+     */
+    final Random random = new Random();
+
+    /**
+     * Seed the random number generator so Cxkk gives the same sequence on every run.
+     */
+    public void setSeed(long seed) {
+        random.setSeed(seed);
+    }
+
+    private Jit jit;
+
+    /**
+     * Sees every executed instruction when set, see Tracer. Null by default.
+     */
+    Tracer tracer;
+
+    /**
+     * Initialize default values for the machine and
+     * place the hex sprites in the first 80 bytes of memory.
+     */
+    public Chip8Machine() {
+        pc = 0x200;
+        i = 0;
+        memory = new int[4096];
+        gprs = new int[16];
+        displayGrid = new long[32];
+        stack = new int[16];
+        stackPointer = 0;
+        delayTimer = 0;
+        soundTimer = 0;
+        opcode = 0;
+        initializeHexSprites();
+    }
+
+    /**
+     * Compile hot basic blocks to JVM bytecode instead of
+     * interpreting them one instruction at a time.
+     */
+    public void enableJit() {
+        if (jit == null) {
+            jit = new Jit();
+        }
+    }
+
+    /**
+     * Attach a tracer, or detach it with null. Only call this while the
+     * machine is not running.
+     */
+    void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Copy a program into memory starting at 0x200.
+     */
+    public void loadProgram(byte[] program) {
+        int max = program.length;
+        for (int i = 0; i < max; i++) {
+            memory[i + 512] = program[i] & 0xFF;
+        }
+        invalidate(512, max);
+    }
+
+    /**
+     * Store the low byte of value in memory, dropping any predecoded
+     * instruction that covers the address.
+     */
+    void writeMemory(int address, int value) {
+        memory[address] = value & 0xFF;
+        invalidate(address, 1);
+    }
+
+    /**
+     * Drop the predecoded instructions covering length bytes from address.
+     * The instruction starting one byte earlier overlaps the first byte too.
+     */
+    void invalidate(int address, int length) {
+        int from = Math.max(address - 1, 0);
+        int to = Math.min(address + length, decoded.length);
+        for (int a = from; a < to; a++) {
+            decoded[a] = null;
+        }
+        if (jit != null) {
+            jit.invalidate(address, length);
+        }
+    }
+
+    /**
+     * Whether the pixel at column x, row y is lit.
+     */
+    public boolean pixel(int x, int y) {
+        return (displayGrid[y] << x) < 0;
+    }
+
+    /**
+     * Record that display rows top to bottom (inclusive) have changed.
+     */
+    void markDirty(int top, int bottom) {
+        if (!frameDirty) {
+            frameDirty = true;
+            dirtyTop = top;
+            dirtyBottom = bottom;
+        } else {
+            dirtyTop = Math.min(dirtyTop, top);
+            dirtyBottom = Math.max(dirtyBottom, bottom);
+        }
+    }
+
+    /**
+     * Whether the display changed since clearDirty was last called.
+     */
+    public boolean isFrameDirty() {
+        return frameDirty;
+    }
+
+    public int dirtyTop() {
+        return dirtyTop;
+    }
+
+    public int dirtyBottom() {
+        return dirtyBottom;
+    }
+
+    public void clearDirty() {
+        frameDirty = false;
+    }
+
+    /**
+     * Key k went down. Safe to call from any thread.
+     */
+    public void keyDown(int key) {
+        int bit = 1 << key;
+        if (latched) {
+            incoming.getAndAccumulate(bit, (mask, b) -> mask | b);
+            incomingPressed.getAndAccumulate(bit, (mask, b) -> mask | b);
+            return;
+        }
+        keypad.getAndAccumulate(bit, (mask, b) -> mask | b);
+        pressedKeys.getAndAccumulate(bit, (mask, b) -> mask | b);
+        Thread waiter = keyWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Key k went up. Safe to call from any thread.
+     */
+    public void keyUp(int key) {
+        if (latched) {
+            incoming.getAndAccumulate(~(1 << key), (mask, b) -> mask & b);
+            return;
+        }
+        keypad.getAndAccumulate(~(1 << key), (mask, b) -> mask & b);
+    }
+
+    void setLatched(boolean latched) {
+        this.latched = latched;
+    }
+
+    /**
+     * Move the keys collected since the last call onto the keypad and
+     * return the keypad as the program will see it for the next frame.
+     */
+    int latchKeypad() {
+        int mask = incoming.get() | incomingPressed.getAndSet(0);
+        setKeypad(mask);
+        return mask;
+    }
+
+    /**
+     * Replace the whole keypad state, as recorded input or a remote client does.
+     * Keys that go down count as presses for Fx0A.
+     */
+    public void setKeypad(int mask) {
+        int before = keypad.getAndSet(mask & 0xFFFF);
+        int pressed = mask & ~before & 0xFFFF;
+        if (pressed != 0) {
+            pressedKeys.getAndAccumulate(pressed, (m, b) -> m | b);
+            Thread waiter = keyWaiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    public boolean isKeyDown(int key) {
+        return (key & ~0xF) == 0 && ((keypad.get() >> key) & 1) != 0;
+    }
+
+    /**
+     * The thread to unpark when a key arrives while Fx0A is waiting.
+     */
+    void setKeyWaiter(Thread thread) {
+        keyWaiter = thread;
+    }
+
+    /**
+     * Whether the machine is stuck in Fx0A with no key to give it.
+     * A blocked machine executes nothing until a key goes down.
+     */
+    boolean isBlocked() {
+        return waitingForKey && (keypad.get() | pressedKeys.get()) == 0;
+    }
+
+    /**
+     * Whether the last run ended in a delay timer wait loop. Nothing
+     * changes until the next timer tick, so a paced caller can sleep.
+     */
+    boolean isIdle() {
+        return idle;
+    }
+
+    /**
+     * Instructions accounted for by skipping wait loops rather than running them.
+     */
+    long idleInstructions() {
+        return idleInstructions;
+    }
+
+    /**
+     * Whether address starts a delay timer wait loop, the way most games
+     * pace themselves: Fx07, 3xkk on the same register, then a jump back
+     * to address. Each trip round it only reloads Vx from the timer, so
+     * until the next tick the loop cannot end and changes nothing.
+     */
+    static boolean isIdleLoop(int[] memory, int address) {
+        if (address + 5 >= memory.length) {
+            return false;
+        }
+        int read = BlockCompiler.word(memory, address);
+        int test = BlockCompiler.word(memory, address + 2);
+        return (read & 0xF0FF) == 0xF007
+                && (test & 0xFF00) == (0x3000 | (read & 0x0F00))
+                && BlockCompiler.word(memory, address + 4) == (0x1000 | address);
+    }
+
+    /**
+     * Called by Fx07 at address: whether it is looping until the delay
+     * timer reaches a value it has not reached yet. Never while a tracer
+     * is attached, which must see every instruction.
+     */
+    boolean waitsForTimer(int address) {
+        return tracer == null && isIdleLoop(memory, address)
+                && delayTimer != (memory[address + 3] & 0xFF);
+    }
+
+    /**
+     * Account for the rest of a run spent in the wait loop that set idle,
+     * with pc just past its Fx07. More trips round the three instruction
+     * loop leave every register as it is, so only pc moves, to where it
+     * would be after remaining more instructions. Returns remaining.
+     */
+    long skipIdle(long remaining) {
+        int loop = pc - 2;
+        pc = loop + 2 * (int) ((1 + remaining) % 3);
+        idleInstructions += remaining;
+        return remaining;
+    }
+
+    /**
+     * A machine halts once the pc runs off the end of memory.
+     */
+    public boolean isRunning() {
+        return pc < 4096;
+    }
+
+    /**
+     * Fetch the predecoded instruction at pc, decoding it from two
+     * memory addresses on a cache miss, run it and increment the pc.
+     * Timers are ticked separately at 60 Hz, see Scheduler.
+     */
+    public void emulateCycle() {
+        Opcode op = decoded[pc];
+        if (op == null) {
+            op = OpcodeTable.TABLE[((memory[pc] << 8) & 0xFF00) + ((memory[pc + 1]) & 0xFF)];
+            decoded[pc] = op;
+        }
+        if (tracer != null) {
+            tracer.instruction(this, pc, op);
+        }
+        opcode = op.opcode;
+        op.handler.execute(this, op);
+        pc += 2;
+    }
+
+    /**
+     * Run up to cycles instructions, stopping early if the machine halts
+     * or blocks waiting for a key. A delay timer wait loop uses up the rest
+     * of the budget at once, see isIdle. Returns the number of instructions
+     * executed, counting those skipped.
+     */
+    public long run(long cycles) {
+        idle = false;
+        if (jit != null) {
+            return jit.run(this, cycles);
+        }
+        long executed = 0;
+        while (executed < cycles && pc < 4096 && !isBlocked()) {
+            emulateCycle();
+            executed++;
+            if (idle) {
+                executed += skipIdle(cycles - executed);
+            }
+        }
+        return executed;
+    }
+
+    /**
+     * Sixty times a second the timers are decremented by 1 if they
+     * are greater than 0
+     */
+    public void tickTimers() {
+        if (delayTimer > 0) {
+            delayTimer--;
+        }
+        if (soundTimer > 0) {
+            soundTimer--;
+            soundTicks++;
+        }
+    }
+
+    /**
+     * The built in character sprites are placed in the first
+     * 80 locations in memory, accessed with index * 5.
+     */
+    private void initializeHexSprites() {
+        char[] fontSet = {
+                0xF0, 0x90, 0x90, 0x90, 0xF0, // 0
+                0x20, 0x60, 0x20, 0x20, 0x70, // 1
+                0xF0, 0x10, 0xF0, 0x80, 0xF0, // 2
+                0xF0, 0x10, 0xF0, 0x10, 0xF0, // 3
+                0x90, 0x90, 0xF0, 0x10, 0x10, // 4
+                0xF0, 0x80, 0xF0, 0x10, 0xF0, // 5
+                0xF0, 0x80, 0xF0, 0x90, 0xF0, // 6
+                0xF0, 0x10, 0x20, 0x40, 0x40, // 7
+                0xF0, 0x90, 0xF0, 0x90, 0xF0, // 8
+                0xF0, 0x90, 0xF0, 0x10, 0xF0, // 9
+                0xF0, 0x90, 0xF0, 0x90, 0x90, // A
+                0xE0, 0x90, 0xE0, 0x90, 0xE0, // B
+                0xF0, 0x80, 0x80, 0x80, 0xF0, // C
+                0xE0, 0x90, 0x90, 0x90, 0xE0, // D
+                0xF0, 0x80, 0xF0, 0x80, 0xF0, // E
+                0xF0, 0x80, 0xF0, 0x80, 0x80  // F
+        };
+
+        for (int i = 0; i < 80; i++) {
+            memory[i] = (int) fontSet[i];
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.chip8.emulator;
+
+/**
+ * A basic block translated to JVM bytecode by BlockCompiler. Running it has
+ * the same effect on the machine as interpreting each of its instructions.
+ */
+interface CompiledBlock {
+    void run(Chip8Machine m);
+}
@@ -0,0 +1,231 @@
+package com.chip8.emulator;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a corpus of ROMs headless, each on a fresh machine for a fixed
+ * number of instructions, and fingerprints where they end up: a hash of
+ * the display and a hash of the registers, timers and stack. Comparing the
+ * fingerprints against golden values from a known good build catches any
+ * change in behaviour.
+ *
+ * Every ROM sees the same scripted input on every run. If a recording
+ * named after the ROM file plus .c8i exists it is replayed, otherwise a
+ * keypad script and a Cxkk seed are derived from the ROM's hash. ROMs are
+ * spread over a thread pool with one task each, so a corpus finishes in
+ * about the time of its slowest ROM once there are enough cores.
+ */
+final class ConformanceRunner {
+
+    /**
+     * Frames between changes of the generated keypad script.
+     */
+    private static final int SCRIPT_PERIOD = 30;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int threads;
+    private final long cycles;
+    private final int instructionsPerSecond;
+    private final boolean jit;
+
+    /**
+     * How one ROM ended: its fingerprints, or the exception that stopped it.
+     */
+    static final class Result {
+        final Rom rom;
+        final long instructions;
+        final String display;
+        final String state;
+        final String error;
+
+        Result(Rom rom, long instructions, String display, String state, String error) {
+            this.rom = rom;
+            this.instructions = instructions;
+            this.display = display;
+            this.state = state;
+            this.error = error;
+        }
+
+        /**
+         * The golden value for this ROM, display and state hash.
+         */
+        String fingerprint() {
+            return error != null ? "crash crash" : display + " " + state;
+        }
+    }
+
+    ConformanceRunner(int threads, long cycles, int instructionsPerSecond, boolean jit) {
+        this.threads = threads;
+        this.cycles = cycles;
+        this.instructionsPerSecond = instructionsPerSecond;
+        this.jit = jit;
+    }
+
+    /**
+     * Run every ROM and return the results in the same order.
+     */
+    List<Result> run(List<Rom> roms) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "chip8-conformance");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Callable<Result>> tasks = new ArrayList<>(roms.size());
+            for (Rom rom : roms) {
+                tasks.add(() -> runOne(rom));
+            }
+            List<Result> results = new ArrayList<>(roms.size());
+            for (Future<Result> result : executor.invokeAll(tasks)) {
+                try {
+                    results.add(result.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Conformance task failed", e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Result runOne(Rom rom) {
+        Chip8Machine machine = new Chip8Machine();
+        machine.loadProgram(rom.program());
+        if (jit) {
+            machine.enableJit();
+        }
+
+        InputReplay recording = null;
+        Path recorded = Paths.get(rom.name() + ".c8i");
+        try {
+            if (Files.isRegularFile(recorded)) {
+                recording = InputReplay.read(recorded);
+                recording.checkProgram(rom.program());
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            return new Result(rom, 0, null, null, "unusable recording: " + e.getMessage());
+        }
+        Random script = new Random(Long.parseUnsignedLong(rom.hash().substring(0, 16), 16));
+        machine.setSeed(recording != null ? recording.seed() : script.nextLong());
+
+        // A recording's keys fall at instruction counts of its own rate
+        int rate = recording != null ? recording.instructionsPerSecond() : instructionsPerSecond;
+        long perTick = Math.max(1, rate / Scheduler.TIMER_HZ);
+        long executed = 0;
+        int mask = 0;
+        try {
+            for (int frame = 0; executed < cycles && machine.isRunning(); frame++) {
+                if (recording != null) {
+                    mask = recording.mask(frame);
+                } else if (frame % SCRIPT_PERIOD == 0) {
+                    // Half the time no key, otherwise one key held for the period
+                    mask = script.nextBoolean() ? 0 : 1 << script.nextInt(16);
+                }
+                machine.setKeypad(mask);
+                executed += Scheduler.runFrame(machine, Math.min(perTick, cycles - executed));
+            }
+        } catch (RuntimeException e) {
+            return new Result(rom, executed, null, null, e.toString());
+        }
+        return new Result(rom, executed, displayHash(machine), stateHash(machine), null);
+    }
+
+    /**
+     * roms without any loaded from the goldens file itself, which a walk
+     * of the corpus directory picks up if it is kept there under a name
+     * that could be a ROM.
+     */
+    static List<Rom> withoutGoldens(List<Rom> roms, Path goldens) {
+        Path skipped = goldens.toAbsolutePath().normalize();
+        List<Rom> corpus = new ArrayList<>(roms.size());
+        for (Rom rom : roms) {
+            if (!Paths.get(rom.name()).toAbsolutePath().normalize().equals(skipped)) {
+                corpus.add(rom);
+            }
+        }
+        return corpus;
+    }
+
+    /**
+     * Read golden fingerprints keyed by ROM hash, one "hash display state
+     * name" line per ROM.
+     */
+    static Map<String, String> readGoldens(Path path) throws IOException {
+        Map<String, String> goldens = new LinkedHashMap<>();
+        if (!Files.exists(path)) {
+            return goldens;
+        }
+        for (String line : Files.readAllLines(path)) {
+            String[] fields = line.trim().split("\\s+", 4);
+            if (fields.length >= 3 && !fields[0].startsWith("#")) {
+                goldens.put(fields[0], fields[1] + " " + fields[2]);
+            }
+        }
+        return goldens;
+    }
+
+    static void writeGoldens(Path path, List<Result> results) throws IOException {
+        Map<String, Result> unique = new LinkedHashMap<>();
+        for (Result result : results) {
+            unique.putIfAbsent(result.rom.hash(), result);
+        }
+        try (BufferedWriter out = Files.newBufferedWriter(path)) {
+            out.write("# rom-sha256 display-hash state-hash name\n");
+            for (Result result : unique.values()) {
+                out.write(result.rom.hash() + " " + result.fingerprint() + " " + result.rom.name() + "\n");
+            }
+        }
+    }
+
+    private static String displayHash(Chip8Machine m) {
+        long hash = FNV_OFFSET;
+        for (long row : m.displayGrid) {
+            hash = mix(hash, row);
+        }
+        return String.format("%016x", hash);
+    }
+
+    private static String stateHash(Chip8Machine m) {
+        long hash = FNV_OFFSET;
+        hash = mix(hash, m.pc);
+        hash = mix(hash, m.i);
+        hash = mix(hash, m.stackPointer);
+        hash = mix(hash, m.delayTimer);
+        hash = mix(hash, m.soundTimer);
+        for (int v : m.gprs) {
+            hash = mix(hash, v);
+        }
+        for (int s : m.stack) {
+            hash = mix(hash, s);
+        }
+        return String.format("%016x", hash);
+    }
+
+    /**
+     * FNV-1a over the eight bytes of value.
+     */
+    private static long mix(long hash, long value) {
+        for (int b = 0; b < 8; b++) {
+            hash ^= (value >>> (8 * b)) & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
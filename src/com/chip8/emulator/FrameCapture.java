@@ -0,0 +1,256 @@
+package com.chip8.emulator;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Records presented frames to an animated GIF, or to a directory of
+ * numbered PNGs, without slowing the emulation thread down.
+ *
+ * frame copies the display into one of a fixed pool of buffers and passes
+ * the buffer's index to a background encoder through a single producer,
+ * single consumer ring; the encoder hands it back through a second ring
+ * once written. Nothing is allocated or locked per frame. If the encoder
+ * falls behind and no buffer is free the frame is dropped and counted,
+ * so capture never makes the emulation wait. Only an unpaced caller, such
+ * as a replay, may ask to wait for a buffer instead so no frame is lost.
+ *
+ * In a GIF, runs of identical frames are merged into one image shown for
+ * their combined time.
+ */
+final class FrameCapture implements AutoCloseable {
+
+    static final int DEFAULT_POOL = 64;
+    static final int DEFAULT_SCALE = 4;
+
+    private static final long WAIT_NANOS = 100_000L;
+
+    private static final IndexColorModel PALETTE = new IndexColorModel(1, 2,
+            new byte[] {0, -1}, new byte[] {0, -1}, new byte[] {0, -1});
+
+    private final Path output;
+    private final boolean gif;
+    private final int scale;
+    private final int framesPerSecond;
+    private final boolean lossless;
+
+    private final long[][] buffers;
+    private final long[] frameNumbers;
+    private final IndexRing filled;
+    private final IndexRing free;
+    // Only frame writes these; the encoder reads frames when it closes
+    private volatile long frames;
+    private volatile long dropped;
+
+    private final Thread encoder;
+    private volatile boolean closed;
+    private volatile IOException failure;
+    private long written;
+
+    // GIF state, encoder thread only
+    private ImageOutputStream stream;
+    private ImageWriter writer;
+    private BufferedImage held;
+    private long shownCentiseconds;
+
+    /**
+     * Capture to output, a GIF if its name ends in .gif and otherwise a
+     * directory of PNGs, at scale pixels per Chip8 pixel. framesPerSecond
+     * is the rate frame will be called at, which sets the GIF timing. If
+     * lossless, frame waits for the encoder rather than dropping frames.
+     */
+    FrameCapture(Path output, int scale, int framesPerSecond, int pool, boolean lossless) throws IOException {
+        this.output = output;
+        this.gif = output.getFileName().toString().toLowerCase().endsWith(".gif");
+        this.scale = scale;
+        this.framesPerSecond = framesPerSecond;
+        this.lossless = lossless;
+        buffers = new long[pool][32];
+        frameNumbers = new long[pool];
+        filled = new IndexRing(pool);
+        free = new IndexRing(pool);
+        for (int b = 0; b < pool; b++) {
+            free.offer(b);
+        }
+        if (gif) {
+            writer = ImageIO.getImageWritersByFormatName("gif").next();
+            stream = ImageIO.createImageOutputStream(Files.newOutputStream(output));
+            writer.setOutput(stream);
+            writer.prepareWriteSequence(null);
+        } else {
+            Files.createDirectories(output);
+        }
+        encoder = new Thread(this::encode, "chip8-capture");
+        encoder.setDaemon(true);
+        encoder.start();
+    }
+
+    /**
+     * Called on the emulation thread once per presented frame.
+     */
+    void frame(Chip8Machine machine) {
+        long number = frames++;
+        int buffer = failure == null ? free.poll() : -1;
+        while (buffer < 0 && lossless && failure == null) {
+            LockSupport.parkNanos(WAIT_NANOS);
+            buffer = free.poll();
+        }
+        if (buffer < 0) {
+            dropped++;
+            return;
+        }
+        System.arraycopy(machine.displayGrid, 0, buffers[buffer], 0, 32);
+        frameNumbers[buffer] = number;
+        filled.offer(buffer);
+        LockSupport.unpark(encoder);
+    }
+
+    long dropped() {
+        return dropped;
+    }
+
+    /**
+     * Frames encoded so far, counting GIF frames merged into the one before.
+     */
+    long written() {
+        return written;
+    }
+
+    /**
+     * Let the encoder finish the frames already queued, then close the
+     * output. Throws the first error the encoder hit, if any.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(encoder);
+        try {
+            encoder.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void encode() {
+        try {
+            while (true) {
+                int buffer = filled.poll();
+                if (buffer >= 0) {
+                    write(buffers[buffer], frameNumbers[buffer]);
+                    free.offer(buffer);
+                } else if (closed) {
+                    break;
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+            if (gif) {
+                flushHeld(frames);
+                writer.endWriteSequence();
+                stream.close();
+                writer.dispose();
+            }
+        } catch (IOException e) {
+            // frame stops queueing once it sees this
+            failure = e;
+        }
+    }
+
+    private void write(long[] display, long number) throws IOException {
+        written++;
+        if (!gif) {
+            ImageIO.write(image(display), "png", output.resolve(String.format("frame-%06d.png", number)).toFile());
+            return;
+        }
+        BufferedImage image = image(display);
+        if (held != null && sameImage(held, image)) {
+            return;
+        }
+        flushHeld(number);
+        held = image;
+    }
+
+    /**
+     * Write the held GIF image, shown until frame number until.
+     * Delays are rounded to centiseconds with the error carried forward,
+     * so the animation keeps time with the emulation over a long run.
+     */
+    private void flushHeld(long until) throws IOException {
+        if (held == null) {
+            return;
+        }
+        long end = until * 100 / framesPerSecond;
+        int delay = (int) Math.max(1, end - shownCentiseconds);
+        shownCentiseconds += delay;
+        writer.writeToSequence(new IIOImage(held, null, gifMetadata(held, delay, shownCentiseconds == delay)), null);
+        held = null;
+    }
+
+    private IIOMetadata gifMetadata(BufferedImage image, int delay, boolean first) throws IOException {
+        IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), null);
+        String format = metadata.getNativeMetadataFormatName();
+        IIOMetadataNode root = new IIOMetadataNode(format);
+        IIOMetadataNode control = new IIOMetadataNode("GraphicControlExtension");
+        control.setAttribute("disposalMethod", "none");
+        control.setAttribute("userInputFlag", "FALSE");
+        control.setAttribute("transparentColorFlag", "FALSE");
+        control.setAttribute("delayTime", Integer.toString(delay));
+        control.setAttribute("transparentColorIndex", "0");
+        root.appendChild(control);
+        if (first) {
+            // Loop forever
+            IIOMetadataNode extensions = new IIOMetadataNode("ApplicationExtensions");
+            IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+            loop.setAttribute("applicationID", "NETSCAPE");
+            loop.setAttribute("authenticationCode", "2.0");
+            loop.setUserObject(new byte[] {1, 0, 0});
+            extensions.appendChild(loop);
+            root.appendChild(extensions);
+        }
+        metadata.mergeTree(format, root);
+        return metadata;
+    }
+
+    private BufferedImage image(long[] display) {
+        BufferedImage image = new BufferedImage(64 * scale, 32 * scale, BufferedImage.TYPE_BYTE_BINARY, PALETTE);
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        int stride = 8 * scale;
+        for (int y = 0; y < 32; y++) {
+            long row = display[y];
+            int line = y * scale * stride;
+            for (int x = 0; x < 64; x++) {
+                if ((row << x) < 0) {
+                    for (int dx = 0; dx < scale; dx++) {
+                        int bit = x * scale + dx;
+                        pixels[line + (bit >> 3)] |= (byte) (0x80 >>> (bit & 7));
+                    }
+                }
+            }
+            for (int dy = 1; dy < scale; dy++) {
+                System.arraycopy(pixels, line, pixels, line + dy * stride, stride);
+            }
+        }
+        return image;
+    }
+
+    private static boolean sameImage(BufferedImage a, BufferedImage b) {
+        return Arrays.equals(((DataBufferByte) a.getRaster().getDataBuffer()).getData(),
+                ((DataBufferByte) b.getRaster().getDataBuffer()).getData());
+    }
+}
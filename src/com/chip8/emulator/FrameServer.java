@@ -0,0 +1,493 @@
+package com.chip8.emulator;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Streams the displays of any number of sessions to viewers over TCP and
+ * takes their keypads back, all on one non-blocking selector thread.
+ *
+ * Every message in either direction is a type byte, a big endian u16
+ * payload length and the payload. The server sends
+ *
+ *   FRAME   flags byte (bit 0 set on a keyframe), then one record per
+ *           changed row: a header byte holding the row number, with bit 7
+ *           set if the row follows raw as 8 bytes, most significant pixel
+ *           first; otherwise a run count and that many run lengths,
+ *           alternating unlit and lit from column 0, the first possibly 0.
+ *
+ * and a viewer sends
+ *
+ *   KEYS    u16 keypad mask, bit k set while key k is down
+ *   SELECT  u16 session number; a new viewer watches session 0
+ *
+ * A viewer starts with a keyframe of all 32 rows and then gets only the
+ * rows that changed, on frames where 00E0 or Dxyn ran. Each frame is
+ * encoded once on its session's emulation thread and the same bytes are
+ * queued to every viewer of that session, so a viewer costs a queue entry
+ * and a socket write. Sessions nobody watches are not encoded at all.
+ *
+ * Frames are encoded into a fixed pool of buffers per session, passed to
+ * the selector thread and back through a pair of IndexRings, so the
+ * emulation thread never allocates or locks. A buffer returns to its pool
+ * once every viewer it was queued to has written or dropped it. Should a
+ * session run out of buffers the frame is skipped and the next one is
+ * sent as a keyframe.
+ *
+ * A viewer more than MAX_PENDING frames behind has its backlog dropped and
+ * is resynchronised with the next keyframe rather than buffered without
+ * limit.
+ */
+final class FrameServer implements AutoCloseable {
+
+    static final int FRAME = 1;
+    static final int KEYS = 2;
+    static final int SELECT = 3;
+
+    static final int KEYFRAME = 1;
+    static final int RAW_ROW = 0x80;
+
+    private static final int HEADER = 3;
+    private static final int MAX_PENDING = 16;
+    private static final int POOL_FRAMES = 2 * MAX_PENDING + 2;
+    private static final int MAX_FRAME = HEADER + 1 + 32 * 9;
+
+    /**
+     * A row with more runs than this is smaller sent raw.
+     */
+    private static final int MAX_RUNS = 6;
+
+    private final Selector selector;
+    private final ServerSocketChannel listener;
+    private final List<Session> sessions = new ArrayList<>();
+    private final List<Viewer> viewers = new ArrayList<>();
+    private Thread thread;
+    private volatile boolean open = true;
+
+    FrameServer(InetSocketAddress address) throws IOException {
+        selector = Selector.open();
+        listener = ServerSocketChannel.open();
+        listener.bind(address);
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    int port() {
+        return listener.socket().getLocalPort();
+    }
+
+    /**
+     * Add a session for machine and return the sink its scheduler should
+     * present to. Sessions are numbered from 0 in the order they are added,
+     * and must all be added before start.
+     */
+    FrameSink session(Chip8Machine machine) {
+        Session session = new Session(machine);
+        sessions.add(session);
+        return session;
+    }
+
+    /**
+     * Start serving on a daemon thread.
+     */
+    void start() {
+        thread = new Thread(this::serve, "chip8-frame-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        selector.wakeup();
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Viewer viewer : viewers) {
+            viewer.channel.close();
+        }
+        listener.close();
+        selector.close();
+    }
+
+    private void serve() {
+        try {
+            while (open) {
+                selector.select();
+                for (Session session : sessions) {
+                    int frame;
+                    while ((frame = session.filled.poll()) >= 0) {
+                        broadcast(session.pool[frame]);
+                    }
+                }
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Viewer viewer = (Viewer) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                read(viewer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                flush(viewer);
+                            }
+                        } catch (IOException e) {
+                            disconnect(viewer);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (open) {
+                System.err.println("Frame server stopped: " + e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = listener.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Viewer viewer = new Viewer(channel);
+        viewer.key = channel.register(selector, SelectionKey.OP_READ, viewer);
+        viewers.add(viewer);
+        if (!sessions.isEmpty()) {
+            watch(viewer, sessions.get(0));
+        }
+    }
+
+    private void disconnect(Viewer viewer) {
+        if (viewer.session != null) {
+            viewer.session.remove(viewer);
+        }
+        for (Pending pending : viewer.pending) {
+            pending.frame.release();
+        }
+        viewer.pending.clear();
+        viewers.remove(viewer);
+        viewer.key.cancel();
+        try {
+            viewer.channel.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    /**
+     * Move viewer to session, which then sends a keyframe for it to start from.
+     */
+    private void watch(Viewer viewer, Session session) {
+        if (viewer.session != null) {
+            viewer.session.remove(viewer);
+        }
+        viewer.session = session;
+        viewer.synced = false;
+        session.keyframeWanted.set(true);
+        session.watching.add(viewer);
+        session.viewers = session.watching.size();
+    }
+
+    private void broadcast(Frame frame) {
+        // Held while queueing so a viewer that writes it at once cannot free it early
+        frame.holders = 1;
+        List<Viewer> watching = frame.session.watching;
+        for (int v = watching.size() - 1; v >= 0; v--) {
+            Viewer viewer = watching.get(v);
+            if (!viewer.synced && !frame.keyframe) {
+                continue;
+            }
+            if (viewer.pending.size() >= MAX_PENDING) {
+                resync(viewer);
+                continue;
+            }
+            viewer.synced = true;
+            frame.holders++;
+            viewer.pending.add(new Pending(frame, frame.data.duplicate()));
+            try {
+                flush(viewer);
+            } catch (IOException e) {
+                disconnect(viewer);
+            }
+        }
+        frame.release();
+    }
+
+    /**
+     * Drop a slow viewer's backlog, keeping any message already half
+     * written, and have it wait for the next keyframe.
+     */
+    private void resync(Viewer viewer) {
+        Pending started = viewer.pending.poll();
+        if (started != null && started.data.position() == 0) {
+            started.frame.release();
+            started = null;
+        }
+        for (Pending pending : viewer.pending) {
+            pending.frame.release();
+        }
+        viewer.pending.clear();
+        if (started != null) {
+            viewer.pending.add(started);
+        }
+        viewer.synced = false;
+        viewer.session.keyframeWanted.set(true);
+    }
+
+    private void flush(Viewer viewer) throws IOException {
+        Pending head;
+        while ((head = viewer.pending.peek()) != null) {
+            viewer.channel.write(head.data);
+            if (head.data.hasRemaining()) {
+                viewer.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            viewer.pending.poll();
+            head.frame.release();
+        }
+        viewer.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void read(Viewer viewer) throws IOException {
+        if (viewer.channel.read(viewer.in) < 0) {
+            disconnect(viewer);
+            return;
+        }
+        ByteBuffer in = viewer.in;
+        in.flip();
+        while (in.remaining() >= HEADER) {
+            int type = in.get(in.position()) & 0xFF;
+            int length = in.getShort(in.position() + 1) & 0xFFFF;
+            if (length != 2 || (type != KEYS && type != SELECT)) {
+                disconnect(viewer);
+                return;
+            }
+            if (in.remaining() < HEADER + length) {
+                break;
+            }
+            in.position(in.position() + HEADER);
+            int value = in.getShort() & 0xFFFF;
+            if (type == KEYS) {
+                // With no sessions there is nothing to press keys on
+                if (viewer.session != null) {
+                    viewer.session.machine.setKeypad(value);
+                }
+            } else if (value < sessions.size()) {
+                watch(viewer, sessions.get(value));
+            } else {
+                disconnect(viewer);
+                return;
+            }
+        }
+        in.compact();
+    }
+
+    /**
+     * Append row's pixels to out, run length encoded unless that is longer than raw.
+     */
+    static void encodeRow(ByteBuffer out, int y, long row) {
+        int start = out.position();
+        out.put((byte) y);
+        out.put((byte) 0);
+        int runs = 0;
+        int x = 0;
+        boolean lit = false;
+        while (x < 64) {
+            // Leading pixels matching the current run's colour
+            int run = Long.numberOfLeadingZeros(lit ? ~(row << x) : row << x);
+            run = Math.min(run, 64 - x);
+            if (++runs > MAX_RUNS) {
+                out.position(start);
+                out.put((byte) (y | RAW_ROW));
+                out.putLong(row);
+                return;
+            }
+            out.put((byte) run);
+            x += run;
+            lit = !lit;
+        }
+        out.put(start + 1, (byte) runs);
+    }
+
+    /**
+     * Read one row record from in into display, the inverse of encodeRow.
+     */
+    static void decodeRow(ByteBuffer in, long[] display) {
+        int header = in.get() & 0xFF;
+        int y = header & ~RAW_ROW;
+        if ((header & RAW_ROW) != 0) {
+            display[y] = in.getLong();
+            return;
+        }
+        int runs = in.get() & 0xFF;
+        long row = 0;
+        int x = 0;
+        for (int r = 0; r < runs; r++) {
+            int run = in.get() & 0xFF;
+            if ((r & 1) == 1 && run > 0) {
+                row |= (-1L >>> x) & ~(run + x >= 64 ? 0 : -1L >>> (x + run));
+            }
+            x += run;
+        }
+        display[y] = row;
+    }
+
+    /**
+     * One machine's display and keypad. present runs on the session's
+     * emulation thread; watching is only touched by the selector thread,
+     * which publishes its size in viewers.
+     */
+    private final class Session implements FrameSink {
+
+        final Chip8Machine machine;
+        final AtomicBoolean keyframeWanted = new AtomicBoolean();
+        final List<Viewer> watching = new ArrayList<>();
+        volatile int viewers;
+        private final long[] shown = new long[32];
+
+        final Frame[] pool = new Frame[POOL_FRAMES];
+        final IndexRing filled = new IndexRing(POOL_FRAMES);
+        final IndexRing free = new IndexRing(POOL_FRAMES);
+
+        /**
+         * A buffer taken from free but not sent, kept for the next frame
+         * since only the selector thread may offer to free.
+         */
+        private int spare = -1;
+
+        Session(Chip8Machine machine) {
+            this.machine = machine;
+            for (int f = 0; f < POOL_FRAMES; f++) {
+                pool[f] = new Frame(this, f);
+                free.offer(f);
+            }
+        }
+
+        void remove(Viewer viewer) {
+            watching.remove(viewer);
+            viewers = watching.size();
+        }
+
+        @Override
+        public void present(Chip8Machine m) {
+            boolean keyframe = keyframeWanted.getAndSet(false);
+            if (!keyframe && (viewers == 0 || !m.isFrameDirty())) {
+                m.clearDirty();
+                return;
+            }
+            int top = keyframe ? 0 : m.dirtyTop();
+            int bottom = keyframe ? 31 : m.dirtyBottom();
+            m.clearDirty();
+
+            int index = spare >= 0 ? spare : free.poll();
+            spare = -1;
+            if (index < 0) {
+                // Every buffer is still queued to some viewer; catch up with a keyframe
+                keyframeWanted.set(true);
+                return;
+            }
+            Frame frame = pool[index];
+            frame.keyframe = keyframe;
+            long[] display = m.displayGrid;
+            ByteBuffer out = frame.data;
+            out.clear();
+            out.position(HEADER);
+            out.put((byte) (keyframe ? KEYFRAME : 0));
+            for (int y = top; y <= bottom; y++) {
+                if (keyframe || display[y] != shown[y]) {
+                    encodeRow(out, y, display[y]);
+                    shown[y] = display[y];
+                }
+            }
+            if (out.position() == HEADER + 1) {
+                spare = index;
+                return;
+            }
+            out.put(0, (byte) FRAME);
+            out.putShort(1, (short) (out.position() - HEADER));
+            out.flip();
+            filled.offer(index);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * One pooled frame buffer. Written by its session's emulation thread
+     * while free, read by the selector thread while filled.
+     */
+    private static final class Frame {
+
+        final Session session;
+        final int index;
+        final ByteBuffer data = ByteBuffer.allocate(MAX_FRAME);
+        boolean keyframe;
+
+        /**
+         * Viewer queues still holding this frame, selector thread only.
+         */
+        int holders;
+
+        Frame(Session session, int index) {
+            this.session = session;
+            this.index = index;
+        }
+
+        void release() {
+            if (--holders == 0) {
+                session.free.offer(index);
+            }
+        }
+    }
+
+    /**
+     * A frame queued to one viewer, with that viewer's write position.
+     */
+    private static final class Pending {
+
+        final Frame frame;
+        final ByteBuffer data;
+
+        Pending(Frame frame, ByteBuffer data) {
+            this.frame = frame;
+            this.data = data;
+        }
+    }
+
+    private static final class Viewer {
+
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(64);
+        final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        SelectionKey key;
+        Session session;
+        boolean synced;
+
+        Viewer(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+}
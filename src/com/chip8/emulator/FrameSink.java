@@ -0,0 +1,15 @@
+package com.chip8.emulator;
+
+/**
+ * Receives the machine once per presented frame, on the emulation thread.
+ */
+interface FrameSink {
+    void present(Chip8Machine machine);
+
+    /**
+     * Called about once a second in turbo mode with the measured emulated
+     * instructions per second and its multiple of the configured rate.
+     */
+    default void reportSpeed(long instructionsPerSecond, double multiple) {
+    }
+}
@@ -0,0 +1,549 @@
+package com.chip8.emulator;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Looks for ROMs and input that crash the emulator or make it hang.
+ *
+ * Each case mutates one of the seed ROMs and runs it on a fresh machine,
+ * frame by frame as a replay would, with a random keypad. A case is a pure
+ * function of the fuzzer seed and its number, so any of them can be run
+ * again exactly. One worker per core takes case numbers from a shared
+ * counter; workers share nothing else, so throughput grows with the number
+ * of cores.
+ *
+ * A crash is any exception out of the machine, and its signature is the
+ * exception type and the kind of instruction that threw it, such as 2nnn
+ * or Dxyn, or fetch if pc ran into the last byte of memory. A hang is
+ * found by instruction count, not time: the machine stalls for
+ * STALL_FRAMES frames with pc, I, the stack, the registers and the timers
+ * all unchanged, or a frame comes back short of its instructions while the
+ * machine is still running. Waiting for a key and jumps to self are the
+ * usual way a Chip8 program stops, so neither is a hang. With jit set every
+ * case also runs compiled beside the interpreter, and any frame after which
+ * the two machines differ is a finding too, named for what differs.
+ *
+ * The first case to hit a signature is minimised: cut to the frame it was
+ * found in, run with no input if that still finds it, every mutated byte
+ * put back that can be, then the ROM cut short. It is written to the
+ * output directory as a ROM, a .c8i recording that replays it with
+ * --replay, and a text report. A worker still inside one case after
+ * HANG_SECONDS is stuck in the emulator itself: the case is reported
+ * without minimising, the worker is interrupted and left behind, and a new
+ * one takes its place.
+ */
+final class Fuzzer {
+
+    static final long DEFAULT_CYCLES = 100_000L;
+    static final int HANG_SECONDS = 10;
+    static final int STALL_FRAMES = 300;
+
+    private static final int MAX_MUTATIONS = 8;
+    private static final int INPUT_CHANGE_ODDS = 8;
+    private static final int REPORT_SECONDS = 10;
+
+    /**
+     * Words of machine state compared frame to frame to spot a stall:
+     * pc, I, the stack pointer, the timers and the registers.
+     */
+    private static final int STATE_WORDS = 5 + 16;
+
+    /**
+     * Opcodes that poke at the edges of the machine: deep calls, keys and
+     * sprites from registers, I near the end of memory, stores through I.
+     */
+    private static final int[] EDGE_OPCODES = {
+        0x2000, 0x00EE, 0xE09E, 0xE0A1, 0xD00F, 0xAFFF, 0xAFF0, 0xF01E, 0xF029,
+        0xF033, 0xF055, 0xF065, 0xF00A, 0xBFFF, 0x1FFE, 0x60FF, 0x8006, 0x800E
+    };
+
+    private final List<Rom> seeds;
+    private final long seed;
+    private final long cycles;
+    private final int instructionsPerSecond;
+    private final boolean jit;
+    private final Path output;
+
+    private final AtomicLong nextCase = new AtomicLong();
+    private final AtomicLong cases = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final Set<String> findings = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger written = new AtomicInteger();
+    private volatile boolean running = true;
+
+    /**
+     * A case as generated: the mutated program and the seed of its input.
+     */
+    private static final class Case {
+        final long id;
+        final byte[] program;
+        final long inputSeed;
+
+        Case(long id, byte[] program, long inputSeed) {
+            this.id = id;
+            this.program = program;
+            this.inputSeed = inputSeed;
+        }
+    }
+
+    /**
+     * How a run ended: the frames it ran, counting the one a finding was
+     * made in, and for a finding its signature and any exception.
+     */
+    private static final class Outcome {
+        final int frames;
+        final RuntimeException crash;
+        final String signature;
+
+        Outcome(int frames, RuntimeException crash, String signature) {
+            this.frames = frames;
+            this.crash = crash;
+            this.signature = signature;
+        }
+
+        boolean found(String expected) {
+            return signature != null && signature.equals(expected);
+        }
+    }
+
+    /**
+     * One worker thread as the watchdog in run sees it: the case it is
+     * running, since when and the frames of it done so far. An abandoned
+     * worker stops after its case.
+     */
+    private static final class Worker {
+        volatile long current = -1;
+        volatile long started;
+        volatile int frames;
+        volatile boolean abandoned;
+        Future<?> future;
+    }
+
+    Fuzzer(List<Rom> seeds, long seed, long cycles, int instructionsPerSecond, boolean jit, Path output) {
+        this.seeds = seeds;
+        this.seed = seed;
+        this.cycles = cycles;
+        this.instructionsPerSecond = instructionsPerSecond;
+        this.jit = jit;
+        this.output = output;
+    }
+
+    /**
+     * Run maxCases cases, or until the process is killed if maxCases is 0,
+     * on threads workers. Prints progress every REPORT_SECONDS. Returns the
+     * number of distinct findings.
+     */
+    int run(int threads, long maxCases) throws IOException, InterruptedException {
+        Files.createDirectories(output);
+        ExecutorService pool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "chip8-fuzz");
+            t.setDaemon(true);
+            return t;
+        });
+        List<Worker> workers = new ArrayList<>();
+        for (int w = 0; w < threads; w++) {
+            workers.add(start(pool, maxCases));
+        }
+
+        long start = System.nanoTime();
+        long hangNanos = HANG_SECONDS * 1_000_000_000L;
+        long nextReport = start;
+        while (!workers.stream().allMatch(worker -> worker.future.isDone())) {
+            Thread.sleep(100);
+            long now = System.nanoTime();
+            for (int w = 0; w < workers.size(); w++) {
+                Worker worker = workers.get(w);
+                long id = worker.current;
+                if (id >= 0 && now - worker.started > hangNanos) {
+                    // Stuck inside the machine: it cannot be stopped, only left behind
+                    worker.abandoned = true;
+                    worker.future.cancel(true);
+                    workers.set(w, start(pool, maxCases));
+                    failures.incrementAndGet();
+                    // The stuck frame is the one after the last it finished
+                    record("hang in case " + id, generate(id), null, worker.frames + 1, false, true);
+                }
+            }
+            if (now - nextReport < 0) {
+                continue;
+            }
+            nextReport = now + REPORT_SECONDS * 1_000_000_000L;
+            long done = cases.get();
+            System.out.printf("Fuzz: %,d cases, %,.0f/s, %,d failing, %d distinct findings%n", done,
+                    done * 1e9 / (now - start), failures.get(), findings.size());
+        }
+        running = false;
+        pool.shutdownNow();
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("Fuzz: %,d cases in %.1f s, %,d failing, %d distinct findings%n", cases.get(),
+                elapsed / 1e9, failures.get(), findings.size());
+        for (Worker worker : workers) {
+            try {
+                worker.future.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Fuzz worker failed", e.getCause());
+            }
+        }
+        return findings.size();
+    }
+
+    private Worker start(ExecutorService pool, long maxCases) {
+        Worker worker = new Worker();
+        worker.future = pool.submit(() -> work(worker, maxCases));
+        return worker;
+    }
+
+    private void work(Worker worker, long maxCases) {
+        while (running && !worker.abandoned) {
+            long id = nextCase.getAndIncrement();
+            if (maxCases > 0 && id >= maxCases) {
+                return;
+            }
+            Case c = generate(id);
+            worker.frames = 0;
+            worker.started = System.nanoTime();
+            worker.current = id;
+            Outcome outcome = execute(c, Integer.MAX_VALUE, false, worker);
+            worker.current = -1;
+            if (worker.abandoned) {
+                // Already reported as a hang by the watchdog
+                return;
+            }
+            cases.incrementAndGet();
+            if (outcome.signature != null) {
+                failures.incrementAndGet();
+                if (findings.add(outcome.signature)) {
+                    minimise(outcome.signature, c, outcome);
+                }
+            }
+        }
+    }
+
+    /**
+     * The case numbered id, always the same for the same fuzzer seed.
+     */
+    private Case generate(long id) {
+        Random random = new Random(seed * 0x9E3779B97F4A7C15L + id);
+        byte[] program = seeds.get(random.nextInt(seeds.size())).program();
+        int mutations = 1 + random.nextInt(MAX_MUTATIONS);
+        for (int m = 0; m < mutations; m++) {
+            program = mutate(program, random);
+        }
+        return new Case(id, program, random.nextLong());
+    }
+
+    private static byte[] mutate(byte[] program, Random random) {
+        if (program.length < 2) {
+            program = Arrays.copyOf(program, 2);
+        }
+        byte[] mutated = program.clone();
+        int at = random.nextInt(mutated.length);
+        switch (random.nextInt(5)) {
+            case 0:
+                mutated[at] = (byte) random.nextInt(256);
+                break;
+            case 1:
+                mutated[at] ^= (byte) (1 << random.nextInt(8));
+                break;
+            case 2:
+                // An edge case opcode with random registers, on an instruction boundary
+                at &= ~1;
+                if (at + 1 < mutated.length) {
+                    int opcode = EDGE_OPCODES[random.nextInt(EDGE_OPCODES.length)] | random.nextInt(16) << 8;
+                    if ((opcode & 0xF000) == 0x2000) {
+                        opcode = 0x2000 | (0x200 + at);
+                    }
+                    mutated[at] = (byte) (opcode >> 8);
+                    mutated[at + 1] = (byte) opcode;
+                }
+                break;
+            case 3:
+                int from = random.nextInt(mutated.length - 1);
+                mutated[at] = program[from];
+                mutated[(at + 1) % mutated.length] = program[from + 1];
+                break;
+            default:
+                int length = Math.min(RomLibrary.MAX_ROM_SIZE, Math.max(2, mutated.length + random.nextInt(65) - 32));
+                int old = mutated.length;
+                mutated = Arrays.copyOf(mutated, length);
+                for (int b = old; b < length; b++) {
+                    mutated[b] = (byte) random.nextInt(256);
+                }
+                break;
+        }
+        return mutated;
+    }
+
+    /**
+     * Run c for up to maxFrames frames, with no keys pressed if quiet, and
+     * with jit beside a compiled copy. Stops early once interrupted. The
+     * worker, if any, is told each frame finished.
+     */
+    private Outcome execute(Case c, int maxFrames, boolean quiet, Worker worker) {
+        Random input = new Random(c.inputSeed);
+        long machineSeed = input.nextLong();
+        Chip8Machine machine = new Chip8Machine();
+        machine.loadProgram(c.program);
+        machine.setSeed(machineSeed);
+        Chip8Machine compiled = null;
+        if (jit) {
+            compiled = new Chip8Machine();
+            compiled.loadProgram(c.program);
+            compiled.setSeed(machineSeed);
+            compiled.enableJit();
+        }
+        long perTick = Math.max(1, instructionsPerSecond / Scheduler.TIMER_HZ);
+        int[] last = new int[STATE_WORDS];
+        int[] state = new int[STATE_WORDS];
+        int stalled = 0;
+        long executed = 0;
+        int frame = 0;
+        int mask = 0;
+        for (; frame < maxFrames && executed < cycles && machine.isRunning(); frame++) {
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            int next = nextMask(input);
+            mask = next >= 0 ? next : mask;
+            machine.setKeypad(quiet ? 0 : mask);
+            long batch = 0;
+            RuntimeException crash = null;
+            try {
+                batch = Scheduler.runFrame(machine, perTick);
+            } catch (RuntimeException e) {
+                crash = e;
+            }
+            if (compiled != null) {
+                compiled.setKeypad(quiet ? 0 : mask);
+                long compiledBatch = 0;
+                RuntimeException compiledCrash = null;
+                try {
+                    compiledBatch = Scheduler.runFrame(compiled, perTick);
+                } catch (RuntimeException e) {
+                    compiledCrash = e;
+                }
+                String difference = difference(machine, batch, crash, compiled, compiledBatch, compiledCrash);
+                if (difference != null) {
+                    return new Outcome(frame + 1, compiledCrash != null ? compiledCrash : crash,
+                            "JIT differs in " + difference);
+                }
+            }
+            if (crash != null) {
+                return new Outcome(frame + 1, crash, signature(crash, machine));
+            }
+            executed += batch;
+            if (batch < perTick && machine.isRunning()) {
+                return new Outcome(frame + 1, null, "short frame in " + kindAt(machine));
+            }
+            capture(machine, state);
+            stalled = Arrays.equals(state, last) && !machine.isBlocked() && !jumpsToSelf(machine) ? stalled + 1 : 0;
+            if (stalled == STALL_FRAMES) {
+                return new Outcome(frame + 1, null, "hang in " + kindAt(machine));
+            }
+            int[] swap = last;
+            last = state;
+            state = swap;
+            if (worker != null) {
+                worker.frames = frame + 1;
+            }
+        }
+        return new Outcome(frame, null, null);
+    }
+
+    private static void capture(Chip8Machine machine, int[] state) {
+        state[0] = machine.pc;
+        state[1] = machine.i;
+        state[2] = machine.stackPointer;
+        state[3] = machine.delayTimer;
+        state[4] = machine.soundTimer;
+        System.arraycopy(machine.gprs, 0, state, 5, 16);
+    }
+
+    private static boolean jumpsToSelf(Chip8Machine machine) {
+        int pc = machine.pc;
+        return pc + 1 < machine.memory.length && BlockCompiler.word(machine.memory, pc) == (0x1000 | pc);
+    }
+
+    /**
+     * What differs between the interpreted machine and the compiled one
+     * after a frame, or null if nothing does. Two crashes agree if they
+     * are of the same type, wherever each left its machine.
+     */
+    private static String difference(Chip8Machine expected, long expectedBatch, RuntimeException expectedCrash,
+                                     Chip8Machine actual, long actualBatch, RuntimeException actualCrash) {
+        if (expectedCrash != null || actualCrash != null) {
+            return expectedCrash != null && actualCrash != null
+                    && expectedCrash.getClass() == actualCrash.getClass() ? null : "crash";
+        }
+        int depth = Math.max(0, Math.min(expected.stackPointer, expected.stack.length));
+        if (expectedBatch != actualBatch) {
+            return "instruction count";
+        } else if (expected.pc != actual.pc) {
+            return "pc";
+        } else if (expected.i != actual.i) {
+            return "I";
+        } else if (expected.stackPointer != actual.stackPointer
+                || !Arrays.equals(expected.stack, 0, depth, actual.stack, 0, depth)) {
+            return "stack";
+        } else if (!Arrays.equals(expected.gprs, actual.gprs)) {
+            return "registers";
+        } else if (expected.delayTimer != actual.delayTimer || expected.soundTimer != actual.soundTimer) {
+            return "timers";
+        } else if (!Arrays.equals(expected.memory, actual.memory)) {
+            return "memory";
+        } else if (!Arrays.equals(expected.displayGrid, actual.displayGrid)) {
+            return "display";
+        }
+        return null;
+    }
+
+    /**
+     * The keypad for the next frame, or -1 to keep the last one as most
+     * frames do. The same numbers are drawn for every frame whatever the
+     * machine does, so a run's input depends only on its seed.
+     */
+    private static int nextMask(Random input) {
+        int keys = input.nextInt(1 << 16);
+        int change = input.nextInt(INPUT_CHANGE_ODDS);
+        return change == 0 ? keys & input.nextInt(1 << 16) & input.nextInt(1 << 16) : -1;
+    }
+
+    /**
+     * Shrink a failing case while it keeps its signature, then write it out.
+     */
+    private void minimise(String signature, Case c, Outcome outcome) {
+        int frames = outcome.frames;
+        RuntimeException crash = outcome.crash;
+        boolean quiet = false;
+
+        Outcome without = execute(c, frames, true, null);
+        if (without.found(signature)) {
+            quiet = true;
+            frames = without.frames;
+            crash = without.crash;
+        }
+
+        // Put back every mutated byte that the crash does not need
+        byte[] original = originalFor(c);
+        byte[] program = c.program.clone();
+        for (int b = 0; b < program.length; b++) {
+            byte expected = b < original.length ? original[b] : 0;
+            if (program[b] == expected) {
+                continue;
+            }
+            byte mutated = program[b];
+            program[b] = expected;
+            Outcome tried = execute(new Case(c.id, program, c.inputSeed), frames, quiet, null);
+            if (tried.found(signature)) {
+                frames = tried.frames;
+                crash = tried.crash;
+            } else {
+                program[b] = mutated;
+            }
+        }
+
+        // Then cut the program as short as it will go
+        int low = 0;
+        int high = program.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            Outcome tried = execute(new Case(c.id, Arrays.copyOf(program, mid), c.inputSeed), frames, quiet,
+                    null);
+            if (tried.found(signature)) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        program = Arrays.copyOf(program, high);
+        Outcome last = execute(new Case(c.id, program, c.inputSeed), frames, quiet, null);
+        if (last.found(signature)) {
+            frames = last.frames;
+            crash = last.crash;
+        }
+        record(signature, new Case(c.id, program, c.inputSeed), crash, frames, quiet, false);
+    }
+
+    /**
+     * The seed ROM c was mutated from, replayed from its case number.
+     */
+    private byte[] originalFor(Case c) {
+        Random random = new Random(seed * 0x9E3779B97F4A7C15L + c.id);
+        return seeds.get(random.nextInt(seeds.size())).program();
+    }
+
+    /**
+     * Write a finding as finding-NNN.ch8, .c8i and .txt in the output
+     * directory, the .c8i replaying frames frames of c's input, or none of
+     * it if quiet. stuck marks a case that left its worker stuck in its
+     * last frame, which is not minimised.
+     */
+    private void record(String signature, Case c, RuntimeException crash, int frames, boolean quiet,
+                        boolean stuck) {
+        findings.add(signature);
+        int number = written.incrementAndGet();
+        String base = String.format("finding-%03d", number);
+        try {
+            Files.write(output.resolve(base + ".ch8"), c.program);
+            Random input = new Random(c.inputSeed);
+            long machineSeed = input.nextLong();
+            try (InputRecorder recorder = new InputRecorder(output.resolve(base + ".c8i"), machineSeed,
+                    instructionsPerSecond, c.program)) {
+                int mask = 0;
+                for (int f = 0; f < frames; f++) {
+                    int next = nextMask(input);
+                    mask = next >= 0 ? next : mask;
+                    recorder.frame(quiet ? 0 : mask);
+                }
+            }
+            StringWriter report = new StringWriter();
+            PrintWriter out = new PrintWriter(report);
+            out.println(signature);
+            out.printf("case %d of fuzzer seed %d, %d frames at %d instructions per second%n",
+                    c.id, seed, frames, instructionsPerSecond);
+            if (stuck) {
+                out.printf("stuck in frame %d for over %d s, not minimised%n", frames, HANG_SECONDS);
+            }
+            out.printf("reproduce: --replay %s.c8i %s.ch8%s%n", base, base, jit ? ", with and without --jit" : "");
+            if (crash != null) {
+                crash.printStackTrace(out);
+            }
+            out.flush();
+            Files.write(output.resolve(base + ".txt"), report.toString().getBytes(StandardCharsets.UTF_8));
+            System.out.println("Found " + signature + ", written to " + output.resolve(base + ".txt"));
+        } catch (IOException e) {
+            System.err.println("Could not write " + base + ": " + e);
+        }
+    }
+
+    /**
+     * The exception type and the kind of instruction at pc, where the
+     * interpreter stops when an instruction throws.
+     */
+    private static String signature(RuntimeException crash, Chip8Machine machine) {
+        return crash.getClass().getSimpleName() + " in " + kindAt(machine);
+    }
+
+    private static String kindAt(Chip8Machine machine) {
+        int pc = machine.pc;
+        return pc >= 0 && pc + 1 < machine.memory.length
+                ? Metrics.kindOf(BlockCompiler.word(machine.memory, pc)) : "fetch";
+    }
+}
@@ -0,0 +1,47 @@
+package com.chip8.emulator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded lock-free queue of buffer indexes for exactly one producer
+ * and one consumer thread. Each side owns one counter and only reads
+ * the other's, so a release store and an acquire load are all it takes.
+ * Used to pass pooled buffers between an emulation thread and a worker
+ * without allocating.
+ */
+final class IndexRing {
+
+    private final int[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    IndexRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new int[size];
+        mask = size - 1;
+    }
+
+    boolean offer(int value) {
+        long t = tail.get();
+        if (t - head.getAcquire() == slots.length) {
+            return false;
+        }
+        slots[(int) t & mask] = value;
+        tail.setRelease(t + 1);
+        return true;
+    }
+
+    /**
+     * The oldest index, or -1 if the ring is empty.
+     */
+    int poll() {
+        long h = head.get();
+        if (h == tail.getAcquire()) {
+            return -1;
+        }
+        int value = slots[(int) h & mask];
+        head.setRelease(h + 1);
+        return value;
+    }
+}
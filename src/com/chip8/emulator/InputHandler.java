@@ -3,12 +3,35 @@ package com.chip8.emulator;
 import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.util.Arrays;
 
+/**
+ * Forwards keyboard events to the machine's keypad as they happen, so a
+ * press and release between two frames is never lost. Keys outside the
+ * keypad are still tracked for the window's own use.
+ */
 class InputHandler implements KeyListener {
 
     private static final boolean[] keys = new boolean[256];
+    private static final int[] KEYPAD = new int[256];
 
-    public InputHandler(Component c) {
+    static {
+        Arrays.fill(KEYPAD, -1);
+        int[] layout = {
+            KeyEvent.VK_S, KeyEvent.VK_1, KeyEvent.VK_2, KeyEvent.VK_3,
+            KeyEvent.VK_4, KeyEvent.VK_Q, KeyEvent.VK_W, KeyEvent.VK_E,
+            KeyEvent.VK_R, KeyEvent.VK_A, KeyEvent.VK_D, KeyEvent.VK_F,
+            KeyEvent.VK_Z, KeyEvent.VK_X, KeyEvent.VK_C, KeyEvent.VK_V
+        };
+        for (int key = 0; key < layout.length; key++) {
+            KEYPAD[layout[key]] = key;
+        }
+    }
+
+    private final Chip8Machine machine;
+
+    public InputHandler(Component c, Chip8Machine machine) {
+        this.machine = machine;
         c.addKeyListener(this);
     }
 
@@ -23,14 +46,20 @@ class InputHandler implements KeyListener {
     public void keyPressed(KeyEvent e) {
         if (e.getKeyCode() > 0 && e.getKeyCode() < 256) {
             keys[e.getKeyCode()] = true;
+            if (KEYPAD[e.getKeyCode()] >= 0) {
+                machine.keyDown(KEYPAD[e.getKeyCode()]);
+            }
         }
     }
 
     public void keyReleased(KeyEvent e) {
         if (e.getKeyCode() > 0 && e.getKeyCode() < 256) {
             keys[e.getKeyCode()] = false;
+            if (KEYPAD[e.getKeyCode()] >= 0) {
+                machine.keyUp(KEYPAD[e.getKeyCode()]);
+            }
         }
     }
 
     public void keyTyped(KeyEvent e) {}
-}
\ No newline at end of file
+}
@@ -0,0 +1,93 @@
+package com.chip8.emulator;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+/**
+ * Logs the keypad once per emulated frame so a session can be replayed
+ * exactly by InputReplay. The file is a header followed by runs:
+ *
+ *   magic "C8IR", version         4 + 2 bytes
+ *   seed                          8 bytes
+ *   instructions per second       4 bytes
+ *   ROM length, ROM CRC-32        4 + 4 bytes
+ *   runs until end of file        varint frame count, 2 byte keypad mask
+ *
+ * Keys stay still for most frames, so a minute of play is a few hundred bytes.
+ */
+final class InputRecorder implements Closeable {
+
+    static final int MAGIC = 0x43384952;
+    static final short VERSION = 1;
+
+    private final DataOutputStream out;
+    private int runMask = -1;
+    private int runLength;
+    private boolean closed;
+
+    InputRecorder(Path path, long seed, int instructionsPerSecond, byte[] program) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeLong(seed);
+        out.writeInt(instructionsPerSecond);
+        out.writeInt(program.length);
+        out.writeInt(checksum(program));
+    }
+
+    /**
+     * Record the keypad mask the machine will see for the next frame.
+     */
+    synchronized void frame(int mask) {
+        if (closed) {
+            return;
+        }
+        if (mask == runMask) {
+            runLength++;
+            return;
+        }
+        flushRun();
+        runMask = mask;
+        runLength = 1;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        flushRun();
+        closed = true;
+        out.close();
+    }
+
+    private void flushRun() {
+        if (runLength == 0) {
+            return;
+        }
+        try {
+            int count = runLength;
+            while ((count & ~0x7F) != 0) {
+                out.writeByte((count & 0x7F) | 0x80);
+                count >>>= 7;
+            }
+            out.writeByte(count);
+            out.writeShort(runMask);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        runLength = 0;
+    }
+
+    static int checksum(byte[] program) {
+        CRC32 crc = new CRC32();
+        crc.update(program);
+        return (int) crc.getValue();
+    }
+}
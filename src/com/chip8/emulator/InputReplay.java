@@ -0,0 +1,132 @@
+package com.chip8.emulator;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A session written by InputRecorder, decoded once into one keypad mask
+ * per frame so it can be played back any number of times.
+ */
+final class InputReplay {
+
+    private final long seed;
+    private final int instructionsPerSecond;
+    private final int programLength;
+    private final int programChecksum;
+    private final short[] masks;
+
+    private InputReplay(long seed, int instructionsPerSecond, int programLength,
+                        int programChecksum, short[] masks) {
+        this.seed = seed;
+        this.instructionsPerSecond = instructionsPerSecond;
+        this.programLength = programLength;
+        this.programChecksum = programChecksum;
+        this.masks = masks;
+    }
+
+    static InputReplay read(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != InputRecorder.MAGIC) {
+                throw new IOException("Not an input recording: " + path);
+            }
+            short version = in.readShort();
+            if (version != InputRecorder.VERSION) {
+                throw new IOException("Unsupported input recording version " + version);
+            }
+            long seed = in.readLong();
+            int ips = in.readInt();
+            int length = in.readInt();
+            int checksum = in.readInt();
+
+            short[] masks = new short[1024];
+            int frames = 0;
+            while (true) {
+                int count;
+                try {
+                    count = readVarint(in);
+                } catch (EOFException end) {
+                    break;
+                }
+                short mask = in.readShort();
+                if (frames + count > masks.length) {
+                    masks = Arrays.copyOf(masks, Math.max(masks.length * 2, frames + count));
+                }
+                Arrays.fill(masks, frames, frames + count, mask);
+                frames += count;
+            }
+            return new InputReplay(seed, ips, length, checksum, Arrays.copyOf(masks, frames));
+        }
+    }
+
+    long seed() {
+        return seed;
+    }
+
+    int instructionsPerSecond() {
+        return instructionsPerSecond;
+    }
+
+    int frames() {
+        return masks.length;
+    }
+
+    /**
+     * The keypad for a frame, no keys once the recording has ended.
+     */
+    int mask(int frame) {
+        return frame < masks.length ? masks[frame] & 0xFFFF : 0;
+    }
+
+    /**
+     * Throws IllegalArgumentException unless program is the ROM the session was recorded with.
+     */
+    void checkProgram(byte[] program) {
+        if (program.length != programLength || InputRecorder.checksum(program) != programChecksum) {
+            throw new IllegalArgumentException("Recording was made with a different ROM");
+        }
+    }
+
+    /**
+     * Play the session back on a freshly loaded machine as fast as it will
+     * run: seed it, then for each frame set the keypad, run one frame of
+     * instructions and tick the timers, exactly as the recording did.
+     * Returns the number of instructions executed.
+     */
+    long play(Chip8Machine machine) {
+        return play(machine, null);
+    }
+
+    /**
+     * As play, presenting the machine to sink after every frame if it is not null.
+     */
+    long play(Chip8Machine machine, FrameSink sink) {
+        machine.setSeed(seed);
+        long perTick = Math.max(1, instructionsPerSecond / Scheduler.TIMER_HZ);
+        long executed = 0;
+        for (int frame = 0; frame < masks.length && machine.isRunning(); frame++) {
+            machine.setKeypad(mask(frame));
+            executed += Scheduler.runFrame(machine, perTick);
+            if (sink != null) {
+                sink.present(machine);
+            }
+        }
+        return executed;
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,8 @@
+package com.chip8.emulator;
+
+/**
+ * A single decoded Chip8 instruction, executed against a machine.
+ */
+interface Instruction {
+    void execute(Chip8Machine m, Opcode op);
+}
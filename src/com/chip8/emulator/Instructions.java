@@ -1,22 +1,22 @@
 package com.chip8.emulator;
 
-import java.awt.event.KeyEvent;
-import java.util.Random;
+import java.util.Arrays;
 
 class Instructions {
 
     /**
      * Jump to a machine code routine at nnn.
      */
-    public static void i0nnn() {
-        Main.pc = Main.opcode & 0x0FFF;
+    public static void i0nnn(Chip8Machine m, Opcode op) {
+        m.pc = op.nnn;
     }
 
     /**
      * Clear the display.
      */
-    public static void i00E0() {
-        Main.displayGrid = new boolean[32][64];
+    public static void i00E0(Chip8Machine m, Opcode op) {
+        Arrays.fill(m.displayGrid, 0L);
+        m.markDirty(0, 31);
     }
 
     /**
@@ -25,18 +25,18 @@ class Instructions {
      * address at the top of the stack, then subtracts 1
      * from the stack pointer.
      */
-    public static void i00EE() {
-        Main.pc = Main.stack[Main.stackPointer];
-        Main.stackPointer--;
+    public static void i00EE(Chip8Machine m, Opcode op) {
+        m.pc = m.stack[m.stackPointer];
+        m.stackPointer--;
     }
 
     /**
      * Jump to location nnn.
      * The interpreter sets the program counter to nnn.
      */
-    public static void i1nnn() {
-        Main.pc = Main.opcode & 0x0FFF;
-        Main.pc -= 2;
+    public static void i1nnn(Chip8Machine m, Opcode op) {
+        m.pc = op.nnn;
+        m.pc -= 2;
     }
 
     /**
@@ -45,11 +45,11 @@ class Instructions {
      * then puts the current PC on the top of the stack.
      * The PC is then set to nnn.
      */
-    public static void i2nnn() {
-        Main.stackPointer++;
-        Main.stack[Main.stackPointer] = Main.pc;
-        Main.pc = Main.opcode & 0x0FFF;
-        Main.pc -= 2;
+    public static void i2nnn(Chip8Machine m, Opcode op) {
+        m.stackPointer++;
+        m.stack[m.stackPointer] = m.pc;
+        m.pc = op.nnn;
+        m.pc -= 2;
     }
 
     /**
@@ -57,14 +57,11 @@ class Instructions {
      * The interpreter compares register Vx to kk,
      * and if they are equal, increments the program counter by 2.
      */
-    public static void i3xkk() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        int kk = Main.opcode & 0x00FF;
-        if (Main.gprs[1] == 0x40 ) {
-            Main.pc += 2;
-        }
-        if (Main.gprs[Vx] == kk) {
-            Main.pc += 2;
+    public static void i3xkk(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        int kk = op.kk;
+        if (m.gprs[Vx] == kk) {
+            m.pc += 2;
         }
     }
 
@@ -73,11 +70,11 @@ class Instructions {
      * The interpreter compares register Vx to kk,
      * and if they are equal, increments the program counter by 2.
      */
-    public static void i4xkk() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        int kk = Main.opcode & 0x00FF;
-        if (Main.gprs[Vx] != kk) {
-            Main.pc += 2;
+    public static void i4xkk(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        int kk = op.kk;
+        if (m.gprs[Vx] != kk) {
+            m.pc += 2;
         }
     }
 
@@ -86,11 +83,11 @@ class Instructions {
      * The interpreter compares register Vx to register Vy,
      * and if they are equal, increments the program counter by 2.
      */
-    public static void i5xy0() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        int Vy = (Main.opcode & 0x00F0) >> 4;
-        if (Main.gprs[Vx] == Main.gprs[Vy]) {
-            Main.pc += 2;
+    public static void i5xy0(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        int Vy = op.y;
+        if (m.gprs[Vx] == m.gprs[Vy]) {
+            m.pc += 2;
         }
     }
 
@@ -98,10 +95,10 @@ class Instructions {
      * Set Vx = kk.
      * The interpreter puts the value kk into register Vx.
      */
-    public static void i6xkk() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        int kk = Main.opcode & 0x00FF;
-        Main.gprs[Vx] = kk;
+    public static void i6xkk(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        int kk = op.kk;
+        m.gprs[Vx] = kk;
     }
 
     /**
@@ -109,24 +106,20 @@ class Instructions {
      * Adds the value kk to the value of register Vx,
      * then stores the result in Vx.
      */
-    public static void i7xkk() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        int kk = Main.opcode & 0x00FF;
-        String hexOpcode2 = Integer.toHexString(Vx);
-        String hexOpcode = Integer.toHexString(Main.gprs[Vx]);
-        String hex = Integer.toHexString(kk);
-        // System.out.println(hexOpcode2 + " " + hexOpcode + " " + hex);
-        Main.gprs[Vx] += kk;
+    public static void i7xkk(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        int kk = op.kk;
+        m.gprs[Vx] += kk;
     }
 
     /**
      * Set Vx = Vy.
      * Stores the value of register Vy in register Vx.
      */
-    public static void i8xy0() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        int Vy = (Main.opcode & 0x00F0) >> 4;
-        Main.gprs[Vx] = Main.gprs[Vy];
+    public static void i8xy0(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        int Vy = op.y;
+        m.gprs[Vx] = m.gprs[Vy];
     }
 
     /**
@@ -136,10 +129,10 @@ class Instructions {
      * the corrseponding bits from two values, and if either bit is 1,
      * then the same bit in the result is also 1. Otherwise, it is 0.
      */
-    public static void i8xy1() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        int Vy = (Main.opcode & 0x00F0) >> 4;
-        Main.gprs[Vx] = Main.gprs[Vx] | Main.gprs[Vy];
+    public static void i8xy1(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        int Vy = op.y;
+        m.gprs[Vx] = m.gprs[Vx] | m.gprs[Vy];
     }
 
     /**
@@ -149,10 +142,10 @@ class Instructions {
      * the corrseponding bits from two values, and if both bits are 1,
      * then the same bit in the result is also 1. Otherwise, it is 0.
      */
-    public static void i8xy2() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        int Vy = (Main.opcode & 0x00F0) >> 4;
-        Main.gprs[Vx] = Main.gprs[Vx] & Main.gprs[Vy];
+    public static void i8xy2(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        int Vy = op.y;
+        m.gprs[Vx] = m.gprs[Vx] & m.gprs[Vy];
     }
 
     /**
@@ -163,10 +156,10 @@ class Instructions {
      * are not both the same, then the corresponding bit in
      * the result is set to 1. Otherwise, it is 0.
      */
-    public static void i8xy3() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        int Vy = (Main.opcode & 0x00F0) >> 4;
-        Main.gprs[Vx] = Main.gprs[Vx] ^ Main.gprs[Vy];
+    public static void i8xy3(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        int Vy = op.y;
+        m.gprs[Vx] = m.gprs[Vx] ^ m.gprs[Vy];
     }
 
     /**
@@ -176,16 +169,16 @@ class Instructions {
      * VF is set to 1, otherwise 0. Only the lowest 8 bits of the result
      * are kept,and stored in Vx.
      */
-    public static void i8xy4() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        int Vy = (Main.opcode & 0x00F0) >> 4;
-        int result = Main.gprs[Vx] + Main.gprs[Vy];
+    public static void i8xy4(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        int Vy = op.y;
+        int result = m.gprs[Vx] + m.gprs[Vy];
         if (result > 255) {
-            Main.gprs[15] = 1;
+            m.gprs[15] = 1;
         } else {
-            Main.gprs[15] = 0;
+            m.gprs[15] = 0;
         }
-        Main.gprs[Vx] = result & 0x00FF;
+        m.gprs[Vx] = result & 0x00FF;
     }
 
     /**
@@ -193,16 +186,16 @@ class Instructions {
      * If Vx > Vy, then VF is set to 1, otherwise 0.
      * Then Vy is subtracted from Vx, and the results stored in Vx.
      */
-    public static void i8xy5() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        int Vy = (Main.opcode & 0x00F0) >> 4;
-        int result = Main.gprs[Vx] - Main.gprs[Vy];
-        if (Main.gprs[Vx] > Main.gprs[Vy]) {
-            Main.gprs[15] = 1;
+    public static void i8xy5(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        int Vy = op.y;
+        int result = m.gprs[Vx] - m.gprs[Vy];
+        if (m.gprs[Vx] > m.gprs[Vy]) {
+            m.gprs[15] = 1;
         } else {
-            Main.gprs[15] = 0;
+            m.gprs[15] = 0;
         }
-        Main.gprs[Vx] = result & 0x00FF;
+        m.gprs[Vx] = result & 0x00FF;
     }
 
     /**
@@ -210,16 +203,16 @@ class Instructions {
      * If the least-significant bit of Vx is 1,
      * then VF is set to 1, otherwise 0. Then Vx is divided by 2.
      */
-    public static void i8xy6() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        int Vy = (Main.opcode & 0x00F0) >> 4;
-        boolean lsb = (Main.opcode & 0x000F) == 1;
+    public static void i8xy6(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        int Vy = op.y;
+        boolean lsb = op.n == 1;
         if (lsb) {
-            Main.gprs[15] = 1;
+            m.gprs[15] = 1;
         } else {
-            Main.gprs[15] = 0;
+            m.gprs[15] = 0;
         }
-        Main.gprs[Vx] = Main.gprs[Vx] >> 1;
+        m.gprs[Vx] = m.gprs[Vx] >> 1;
     }
 
     /**
@@ -227,31 +220,31 @@ class Instructions {
      * If Vy > Vx, then VF is set to 1, otherwise 0.
      * Then Vx is subtracted from Vy, and the results stored in Vx.
      */
-    public static void i8xy7() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        int Vy = (Main.opcode & 0x00F0) >> 4;
-        if (Main.gprs[Vy] > Main.gprs[Vx]) {
-            Main.gprs[15] = 1;
+    public static void i8xy7(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        int Vy = op.y;
+        if (m.gprs[Vy] > m.gprs[Vx]) {
+            m.gprs[15] = 1;
         } else {
-            Main.gprs[15] = 0;
+            m.gprs[15] = 0;
         }
-        Main.gprs[Vx] = Main.gprs[Vy] - Main.gprs[Vx];
+        m.gprs[Vx] = m.gprs[Vy] - m.gprs[Vx];
     }
 
     /**
      * Set Vx = Vx SHL 1. If the most-significant bit of Vx is 1,
      * then VF is set to 1, otherwise to 0. Then Vx is multiplied by 2.
      */
-    public static void i8xyE() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        int Vy = (Main.opcode & 0x00F0) >> 4;
-        boolean lsb = (Main.opcode & 0x0080) == 1;
+    public static void i8xyE(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        int Vy = op.y;
+        boolean lsb = (op.opcode & 0x0080) == 1;
         if (lsb) {
-            Main.gprs[15] = 1;
+            m.gprs[15] = 1;
         } else {
-            Main.gprs[15] = 0;
+            m.gprs[15] = 0;
         }
-        Main.gprs[Vx] = Main.gprs[Vx] << 1;
+        m.gprs[Vx] = m.gprs[Vx] << 1;
     }
 
     /**
@@ -259,11 +252,11 @@ class Instructions {
      * The values of Vx and Vy are compared, and if they are not equal,
      * the program counter is increased by 2.
      */
-    public static void i9xy0() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        int Vy = (Main.opcode & 0x00F0) >> 4;
-        if (Main.gprs[Vx] != Main.gprs[Vy]) {
-            Main.pc++;
+    public static void i9xy0(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        int Vy = op.y;
+        if (m.gprs[Vx] != m.gprs[Vy]) {
+            m.pc += 2;
         }
     }
 
@@ -271,18 +264,18 @@ class Instructions {
      * Set I = nnn.
      * The value of register I is set to nnn.
      */
-    public static void iAnnn() {
-        int nnn = Main.opcode & 0x0FFF;
-        Main.i = nnn;
+    public static void iAnnn(Chip8Machine m, Opcode op) {
+        int nnn = op.nnn;
+        m.i = nnn;
     }
 
     /**
      * Jump to location nnn + V0.
      * The program counter is set to nnn plus the value of V0.
      */
-    public static void iBnnn() {
-        int nnn = Main.opcode & 0x0FFF;
-        Main.pc = nnn + Main.gprs[0];
+    public static void iBnnn(Chip8Machine m, Opcode op) {
+        int nnn = op.nnn;
+        m.pc = nnn + m.gprs[0];
     }
 
     /**
@@ -290,62 +283,38 @@ class Instructions {
      * a random number from 0 to 255, which is then ANDed with the value kk.
      * The results are stored in Vx.
      */
-    public static void iCxkk() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        int kk = Main.opcode & 0x00FF;
-        Random randomByteObject = new Random();
-        int randomByte = randomByteObject.nextInt(255);
-        Main.gprs[Vx] = randomByte & kk;
+    public static void iCxkk(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        int kk = op.kk;
+        int randomByte = m.random.nextInt(256);
+        m.gprs[Vx] = randomByte & kk;
     }
 
     /**
      * Display n-byte sprite starting at memory location I
      * at (Vx, Vy), set VF = collision.
-     */
-    public static void iDxyn() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        int Vy = (Main.opcode & 0x00F0) >> 4;
-        int n = Main.opcode & 0x000F;
-        int xPos = Main.gprs[Vx];
-        int yPos = Main.gprs[Vy];
-        // System.out.println("I tried to draw a sprite");
-
-        for (int i = 0; i < n; i++) {
-            boolean[] bitsInByte = new boolean[8];
-            byte retrievedByte = (byte) Main.memory[Main.i + i];
-            bitsInByte[0] = (retrievedByte & 0x0080) > 0;
-            bitsInByte[1] = (retrievedByte & 0x0040) > 0;
-            bitsInByte[2] = (retrievedByte & 0x0020) > 0;
-            bitsInByte[3] = (retrievedByte & 0x0010) > 0;
-            bitsInByte[4] = (retrievedByte & 0x0008) > 0;
-            bitsInByte[5] = (retrievedByte & 0x0004) > 0;
-            bitsInByte[6] = (retrievedByte & 0x0002) > 0;
-            bitsInByte[7] = (retrievedByte & 0x0001) > 0;
-
-            for (int z = 0; z < 8; z++) {
-                if ((yPos + i > 31) | (xPos + z > 63)) {
-                    break;
-                } else {
-                    Main.displayGrid[yPos + i][xPos + z] = Main.displayGrid[yPos + i][xPos + z] ^ bitsInByte[z];
-                    if (Main.displayGrid[yPos + i][xPos + z] ^ bitsInByte[z] == false) {
-                        Main.gprs[15] = 1;
-                    }
-                }
-            }
-            /*
-            for (int x = 0; x < 8; x++) {
-                // Set VF to 1 if a screen pixel flipped from active to inactive
-                if ((yPos + i) > 31 | (xPos + 8 - x) > 63) {
-                    break;
-                } else {
-                    if ((Main.displayGrid[Vy + i][Vx + 8 - x] ^ bitsInByte[x]) == false) {
-                        Main.gprs[15] = 1;
-                    }
-                    // System.out.println("Sprite was drawn to the screen at: " + (xPos + 8 - x)  + " " + (yPos + i));
-                    Main.displayGrid[yPos + i][xPos + 8 - x] = Main.displayGrid[yPos + i][xPos + 8 - x] ^ bitsInByte[x];
-                }
+     * Each sprite byte is shifted into place as one row of the packed
+     * display and XORed in; VF is set if any lit pixel is turned off.
+     * The start position wraps around the screen, the sprite itself is clipped.
+     */
+    public static void iDxyn(Chip8Machine m, Opcode op) {
+        int xPos = m.gprs[op.x] & 63;
+        int yPos = m.gprs[op.y] & 31;
+        int rows = Math.min(op.n, 32 - yPos);
+        long[] display = m.displayGrid;
+        int collision = 0;
+
+        for (int i = 0; i < rows; i++) {
+            long sprite = ((long) (m.memory[m.i + i] & 0xFF) << 56) >>> xPos;
+            long row = display[yPos + i];
+            if ((row & sprite) != 0) {
+                collision = 1;
             }
-            */
+            display[yPos + i] = row ^ sprite;
+        }
+        m.gprs[15] = collision;
+        if (rows > 0) {
+            m.markDirty(yPos, yPos + rows - 1);
         }
     }
 
@@ -355,10 +324,10 @@ class Instructions {
      * to the value of Vx is currently in the down position,
      * PC is increased by 2.
      */
-    public static void iEx9E() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        if (Main.keyboardState[Main.gprs[Vx]]) {
-            Main.pc += 2;
+    public static void iEx9E(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        if (m.isKeyDown(m.gprs[Vx])) {
+            m.pc += 2;
         }
     }
 
@@ -368,106 +337,74 @@ class Instructions {
      * to the value of Vx is currently in the up position,
      * PC is increased by 2.
      */
-    public static void iExA1() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        if (!Main.keyboardState[Main.gprs[Vx]]) {
-            Main.pc += 2;
+    public static void iExA1(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        if (!m.isKeyDown(m.gprs[Vx])) {
+            m.pc += 2;
         }
     }
 
     /**
      * Set Vx = delay timer value.
      * The value of DT is placed into Vx.
+     * Flags the machine idle if this starts a wait for the timer.
      */
-    public static void iFx07() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        Main.gprs[Vx] = Main.delayTimer;
+    public static void iFx07(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        m.gprs[Vx] = m.delayTimer;
+        if (m.waitsForTimer(m.pc)) {
+            m.idle = true;
+        }
     }
 
     /**
      * Wait for a key press, store the value of the key in Vx.
      * All execution stops until a key is pressed,
      * then the value of that key is stored in Vx.
-     */
-    public static void iFx0A() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        boolean flag = true;
-        while (flag) {
-            if (Main.input.isKeyDown(KeyEvent.VK_S)) {
-                flag = afterKeyPress(0, Vx);
-            } else if (Main.input.isKeyDown(KeyEvent.VK_1)) {
-                flag = afterKeyPress(1, Vx);
-            } else if (Main.input.isKeyDown(KeyEvent.VK_2)) {
-                flag = afterKeyPress(2, Vx);
-            } else if (Main.input.isKeyDown(KeyEvent.VK_3)) {
-                flag = afterKeyPress(3, Vx);
-            } else if (Main.input.isKeyDown(KeyEvent.VK_4)) {
-                flag = afterKeyPress(4, Vx);
-            } else if (Main.input.isKeyDown(KeyEvent.VK_Q)) {
-                flag = afterKeyPress(5, Vx);
-            } else if (Main.input.isKeyDown(KeyEvent.VK_W)) {
-                flag = afterKeyPress(6, Vx);
-            } else if (Main.input.isKeyDown(KeyEvent.VK_E)) {
-                flag = afterKeyPress(7, Vx);
-            } else if (Main.input.isKeyDown(KeyEvent.VK_R)) {
-                flag = afterKeyPress(8, Vx);
-            } else if (Main.input.isKeyDown(KeyEvent.VK_A)) {
-                flag = afterKeyPress(9, Vx);
-            } else if (Main.input.isKeyDown(KeyEvent.VK_D)) {
-                flag = afterKeyPress(10, Vx);
-            } else if (Main.input.isKeyDown(KeyEvent.VK_F)) {
-                flag = afterKeyPress(11, Vx);
-            } else if (Main.input.isKeyDown(KeyEvent.VK_Z)) {
-                flag = afterKeyPress(12, Vx);
-            } else if (Main.input.isKeyDown(KeyEvent.VK_X)) {
-                flag = afterKeyPress(13, Vx);
-            } else if (Main.input.isKeyDown(KeyEvent.VK_C)) {
-                flag = afterKeyPress(14, Vx);
-            } else if (Main.input.isKeyDown(KeyEvent.VK_V)) {
-                flag = afterKeyPress(15, Vx);
-            }
+     * Presses from before the wait began are forgotten, a key still held
+     * down counts. With no key the instruction is left to re-execute and
+     * the machine reports itself blocked, so the scheduler parks instead
+     * of spinning until the input thread delivers a key.
+     */
+    public static void iFx0A(Chip8Machine m, Opcode op) {
+        if (!m.waitingForKey) {
+            m.pressedKeys.set(0);
+            m.waitingForKey = true;
+        }
+        int keys = m.pressedKeys.getAndSet(0) | m.keypad.get();
+        if (keys != 0) {
+            m.gprs[op.x] = Integer.numberOfTrailingZeros(keys);
+            m.waitingForKey = false;
+        } else {
+            m.pc -= 2;
         }
-    }
-
-    /**
-     * Used only in conjunction with iFx0A
-     * Clears keyboard state after keypress and places value
-     * back into Vx.
-     */
-    private static boolean afterKeyPress(int i, int Vx) {
-        Main.keyboardState = new boolean[16];
-        Main.gprs[Vx] = i;
-        // System.out.println("Value stored in " + i + " " + Main.gprs[Vx]);
-        return false;
     }
 
     /**
      * Set delay timer = Vx.
      * DT is set equal to the value of Vx.
      */
-    public static void iFx15() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        Main.delayTimer = Main.gprs[Vx];
+    public static void iFx15(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        m.delayTimer = m.gprs[Vx];
     }
 
     /**
      * Set sound timer = Vx.
      * ST is set equal to the value of Vx.
      */
-    public static void iFx18() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        Main.soundTimer = Main.gprs[Vx];
+    public static void iFx18(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        m.soundTimer = m.gprs[Vx];
     }
 
     /**
      * Set I = I + Vx.
      * The values of I and Vx are added, and the results are stored in I.
      */
-    public static void iFx1E() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        Main.i = (Main.i + Main.gprs[Vx]) & 0xFFFF;
-        // String hexOpcode = Integer.toHexString(Main.i);
-        // System.out.println("i: " + hexOpcode);
+    public static void iFx1E(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        m.i = (m.i + m.gprs[Vx]) & 0xFFFF;
     }
 
     /**
@@ -476,9 +413,9 @@ class Instructions {
      * sprite corresponding to the value of Vx. See section 2.4,
      * Display, for more information on the Chip-8 hexadecimal font.
      */
-    public static void iFx29() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        Main.i = Main.gprs[Vx] * 5;
+    public static void iFx29(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        m.i = m.gprs[Vx] * 5;
     }
 
     /**
@@ -486,12 +423,13 @@ class Instructions {
      * The interpreter takes the decimal value of Vx,
      * and places the hundreds digit in memory at location in I,
      * the tens digit at location I+1, and the ones digit at location I+2.
+     * Memory is bytes, so a Vx outside 0 to 255 stores each digit's low byte.
      */
-    public static void iFx33() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        Main.memory[Main.i] = Main.gprs[Vx] / 100;
-        Main.memory[Main.i + 1] = (Main.gprs[Vx] % 100) / 10;
-        Main.memory[Main.i + 2] = (Main.gprs[Vx] % 100) % 10;
+    public static void iFx33(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        m.writeMemory(m.i, (m.gprs[Vx] / 100) & 0xFF);
+        m.writeMemory(m.i + 1, ((m.gprs[Vx] % 100) / 10) & 0xFF);
+        m.writeMemory(m.i + 2, ((m.gprs[Vx] % 100) % 10) & 0xFF);
     }
 
     /**
@@ -499,9 +437,20 @@ class Instructions {
      * The interpreter copies the values of registers V0 through Vx
      * into memory, starting at the address in I.
      */
-    public static void iFx55() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        System.arraycopy(Main.gprs, 0, Main.memory, Main.i, Vx);
+    public static void iFx55(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        int base = m.i & 0xFFF;
+        for (int r = 0; r <= Vx; r++) {
+            m.memory[(base + r) & 0xFFF] = m.gprs[r] & 0xFF;
+        }
+        // Addresses past the end of memory wrap around to 0
+        int end = base + Vx + 1;
+        if (end <= 4096) {
+            m.invalidate(base, Vx + 1);
+        } else {
+            m.invalidate(base, 4096 - base);
+            m.invalidate(0, end - 4096);
+        }
     }
 
     /**
@@ -510,9 +459,11 @@ class Instructions {
      * The interpreter reads values from memory starting at location I
      * into registers V0 through Vx.
      */
-    public static void iFx65() {
-        int Vx = (Main.opcode & 0x0F00) >> 8;
-        // System.out.println(Vx);
-        System.arraycopy(Main.memory, Main.i, Main.gprs, 0, Vx);
+    public static void iFx65(Chip8Machine m, Opcode op) {
+        int Vx = op.x;
+        int base = m.i & 0xFFF;
+        for (int r = 0; r <= Vx; r++) {
+            m.gprs[r] = m.memory[(base + r) & 0xFFF];
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,151 @@
+package com.chip8.emulator;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Optional compiling tier for one machine. Addresses are interpreted until
+ * they have been executed HOT_THRESHOLD times, then the basic block starting
+ * there is compiled and run as a whole from then on.
+ *
+ * Compiled code only depends on the block's address and bytes, so it is shared
+ * between every machine running the same program. The shared table only
+ * holds blocks weakly: once no machine's Jit uses a block any more, the
+ * hidden class behind it can be unloaded and its entry is dropped, so
+ * running many ROMs or fuzz cases in one JVM does not grow it forever. A write into a compiled
+ * block evicts it; a block evicted MAX_EVICTIONS times is left to the
+ * interpreter for good, since the program is clearly rewriting that code.
+ * Delay timer wait loops are never compiled, so they are skipped as in the
+ * interpreter.
+ */
+final class Jit {
+
+    static final int HOT_THRESHOLD = 32;
+    private static final int MAX_EVICTIONS = 3;
+
+    private static final Map<String, SharedBlock> SHARED = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<CompiledBlock> COLLECTED = new ReferenceQueue<>();
+
+    private final Block[] blocks = new Block[4096];
+    private final int[] heat = new int[4096];
+    private final int[] evictions = new int[4096];
+    private int live;
+
+    /**
+     * Run up to cycles instructions, stopping early if the machine halts
+     * or blocks waiting for a key.
+     * A block is only entered if it fits in the remaining budget, so the
+     * instruction count is exact. Returns the number of instructions executed.
+     */
+    long run(Chip8Machine m, long cycles) {
+        long executed = 0;
+        while (executed < cycles && m.pc < 4096 && !m.isBlocked()) {
+            int pc = m.pc;
+            Block block = blocks[pc];
+            if (block == null && ++heat[pc] == HOT_THRESHOLD) {
+                block = compile(m, pc);
+            }
+            if (block != null && block.length <= cycles - executed) {
+                if (m.tracer != null) {
+                    m.tracer.block(m, pc, block.length);
+                }
+                block.code.run(m);
+                executed += block.length;
+            } else {
+                m.emulateCycle();
+                executed++;
+                if (m.idle) {
+                    executed += m.skipIdle(cycles - executed);
+                }
+            }
+        }
+        return executed;
+    }
+
+    /**
+     * Evict every block that overlaps length bytes written at address.
+     */
+    void invalidate(int address, int length) {
+        if (live == 0) {
+            return;
+        }
+        int from = Math.max(address - 2 * BlockCompiler.MAX_BLOCK_LENGTH, 0);
+        int to = Math.min(address + length, blocks.length);
+        for (int start = from; start < to; start++) {
+            Block block = blocks[start];
+            if (block != null && block.end > address) {
+                blocks[start] = null;
+                heat[start] = 0;
+                evictions[start]++;
+                live--;
+            }
+        }
+    }
+
+    private Block compile(Chip8Machine m, int start) {
+        if (evictions[start] >= MAX_EVICTIONS || Chip8Machine.isIdleLoop(m.memory, start)) {
+            // Wait loops stay interpreted, where Fx07 can notice them and skip ahead
+            return null;
+        }
+        int length = BlockCompiler.scan(m.memory, start);
+        if (length == 0) {
+            return null;
+        }
+        char[] key = new char[length + 1];
+        key[0] = (char) start;
+        for (int n = 0; n < length; n++) {
+            key[n + 1] = (char) BlockCompiler.word(m.memory, start + 2 * n);
+        }
+        CompiledBlock code = shared(new String(key), m.memory, start, length);
+        Block block = new Block(start, length, code);
+        blocks[start] = block;
+        live++;
+        return block;
+    }
+
+    /**
+     * The shared code for key, compiling it if no machine holds it any more.
+     */
+    private static CompiledBlock shared(String key, int[] memory, int start, int length) {
+        SharedBlock collected;
+        while ((collected = (SharedBlock) COLLECTED.poll()) != null) {
+            SHARED.remove(collected.key, collected);
+        }
+        // Held strongly here so the entry cannot be collected before it is returned
+        CompiledBlock[] code = new CompiledBlock[1];
+        SHARED.compute(key, (k, entry) -> {
+            code[0] = entry == null ? null : entry.get();
+            if (code[0] != null) {
+                return entry;
+            }
+            code[0] = BlockCompiler.compile(memory, start, length);
+            return new SharedBlock(k, code[0]);
+        });
+        return code[0];
+    }
+
+    private static final class SharedBlock extends WeakReference<CompiledBlock> {
+
+        final String key;
+
+        SharedBlock(String key, CompiledBlock code) {
+            super(code, COLLECTED);
+            this.key = key;
+        }
+    }
+
+    private static final class Block {
+
+        final int length;
+        final int end;
+        final CompiledBlock code;
+
+        Block(int start, int length, CompiledBlock code) {
+            this.length = length;
+            this.end = start + 2 * length;
+            this.code = code;
+        }
+    }
+}
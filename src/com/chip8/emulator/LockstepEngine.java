@@ -0,0 +1,543 @@
+package com.chip8.emulator;
+
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * Runs many copies of one program in lockstep, for bulk work such as
+ * searches or regression corpora where the same ROM is run with
+ * different seeds and inputs.
+ *
+ * The state of all machines is stored as a struct of arrays. Register r
+ * of machine m is v[r * size + m], so one register across every machine
+ * is a contiguous run of ints. pc, I, the stack pointer and the timers
+ * each get one array. Stacks and displays are flat arrays with 16 slots
+ * and 32 rows per machine. Only memory stays one array per machine,
+ * because every instruction reads it at a different address.
+ *
+ * Each step runs one instruction on every live machine. Machines are
+ * grouped by pc first. When a whole group has the same 6xkk, 7xkk or 8xyN
+ * instruction, it runs across vector lanes through LockstepVectors, whole
+ * lanes at a time, and any leftovers run scalar. While every machine
+ * is still on the same path the lanes load straight from the register
+ * arrays; once the machines diverge, each group gathers its members.
+ * Everything else runs on a scalar path that mirrors Instructions
+ * exactly, quirks included, so a machine here ends in the same state as a
+ * Chip8Machine given the same seed and keypad each frame.
+ *
+ * A machine halts like a Chip8Machine once its pc runs off the end of
+ * memory. A machine that would throw, for example on stack overflow,
+ * is marked crashed and left out of later steps instead.
+ */
+final class LockstepEngine {
+
+    private static final int STACK_DEPTH = 16;
+    private static final int ROWS = 32;
+
+    /**
+     * Lanes per vector op, or 0 when jdk.incubator.vector is not loaded,
+     * in which case LockstepVectors is never touched and all runs scalar.
+     */
+    static final int LANES = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+            ? LockstepVectors.lanes() : 0;
+
+    private final int size;
+
+    final int[] pc;
+    final int[] i;
+    final int[] v;
+    final int[] sp;
+    final int[] stack;
+    final int[] delayTimer;
+    final int[] soundTimer;
+    final int[] keypad;
+    final long[] display;
+    final int[][] memory;
+    private final Random[] random;
+    private final boolean[] crashed;
+
+    /**
+     * Indexes of the machines still running, in ascending order, so
+     * while none has stopped it is just 0 to size - 1.
+     */
+    private final int[] live;
+    private int liveCount;
+
+    // Grouping scratch, reused every step
+    private final int[] groupSize = new int[4096];
+    private final int[] groupEnd = new int[4096];
+    private final int[] groupPcs;
+    private final int[] order;
+
+    private long instructions;
+    private long vectorInstructions;
+    private long steps;
+    private long groups;
+
+    /**
+     * size machines, each with program loaded at 0x200 and the hex sprites
+     * at 0, as a fresh Chip8Machine has.
+     */
+    LockstepEngine(byte[] program, int size) {
+        this.size = size;
+        pc = new int[size];
+        i = new int[size];
+        v = new int[16 * size];
+        sp = new int[size];
+        stack = new int[STACK_DEPTH * size];
+        delayTimer = new int[size];
+        soundTimer = new int[size];
+        keypad = new int[size];
+        display = new long[ROWS * size];
+        memory = new int[size][];
+        random = new Random[size];
+        crashed = new boolean[size];
+        live = new int[size];
+        groupPcs = new int[size];
+        order = new int[size];
+
+        int[] image = new Chip8Machine().memory;
+        for (int b = 0; b < program.length; b++) {
+            image[0x200 + b] = program[b] & 0xFF;
+        }
+        for (int m = 0; m < size; m++) {
+            pc[m] = 0x200;
+            memory[m] = image.clone();
+            random[m] = new Random();
+            live[m] = m;
+        }
+        liveCount = size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Seed machine m's Cxkk generator, as Chip8Machine.setSeed does.
+     */
+    void setSeed(int m, long seed) {
+        random[m].setSeed(seed);
+    }
+
+    /**
+     * Set the whole keypad of machine m, bit k set while key k is down.
+     * Fx0A takes the lowest key down when it runs.
+     */
+    void setKeypad(int m, int mask) {
+        keypad[m] = mask & 0xFFFF;
+    }
+
+    /**
+     * Machines that have neither halted nor crashed.
+     */
+    int running() {
+        return liveCount;
+    }
+
+    boolean isCrashed(int m) {
+        return crashed[m];
+    }
+
+    /**
+     * Instructions run so far across all machines.
+     */
+    long instructions() {
+        return instructions;
+    }
+
+    /**
+     * Of instructions, those run in vector lanes.
+     */
+    long vectorInstructions() {
+        return vectorInstructions;
+    }
+
+    /**
+     * Average number of distinct pcs the live machines were split over per step.
+     */
+    double averageGroups() {
+        return steps == 0 ? 0 : (double) groups / steps;
+    }
+
+    /**
+     * One frame as Scheduler.runFrame runs it: perTick steps, then a timer
+     * tick. A machine blocked in Fx0A spins in place for the frame. Returns
+     * the instructions run across all machines.
+     */
+    long runFrame(int perTick) {
+        long executed = 0;
+        for (int s = 0; s < perTick && liveCount > 0; s++) {
+            executed += step();
+        }
+        tickTimers();
+        return executed;
+    }
+
+    /**
+     * Decrement the nonzero timers of every running machine, sixty times an
+     * emulated second. As with Scheduler, a machine that stopped keeps them.
+     */
+    void tickTimers() {
+        for (int a = 0; a < liveCount; a++) {
+            int m = live[a];
+            if (delayTimer[m] > 0) {
+                delayTimer[m]--;
+            }
+            if (soundTimer[m] > 0) {
+                soundTimer[m]--;
+            }
+        }
+    }
+
+    /**
+     * Run one instruction on every live machine and return how many ran.
+     */
+    long step() {
+        int count = liveCount;
+        if (count == 0) {
+            return 0;
+        }
+        // Count machines per pc, remembering each pc the first time it is seen
+        int distinct = 0;
+        for (int a = 0; a < count; a++) {
+            int p = pc[live[a]];
+            if (groupSize[p]++ == 0) {
+                groupPcs[distinct++] = p;
+            }
+        }
+        if (distinct == 1 && count == size) {
+            // Every machine on one pc: the members are simply 0 to size - 1
+            groupSize[groupPcs[0]] = 0;
+            runGroup(groupPcs[0], null, 0, size);
+        } else {
+            // Counting sort of the live machines by pc into order
+            int offset = 0;
+            for (int g = 0; g < distinct; g++) {
+                int p = groupPcs[g];
+                offset += groupSize[p];
+                groupEnd[p] = offset;
+            }
+            for (int a = count - 1; a >= 0; a--) {
+                int m = live[a];
+                order[--groupEnd[pc[m]]] = m;
+            }
+            // groupEnd now holds where each group starts
+            for (int g = 0; g < distinct; g++) {
+                int p = groupPcs[g];
+                int from = groupEnd[p];
+                int to = from + groupSize[p];
+                groupSize[p] = 0;
+                runGroup(p, order, from, to);
+            }
+        }
+        steps++;
+        groups += distinct;
+        instructions += count;
+        retire();
+        return count;
+    }
+
+    /**
+     * Run the instruction at address p on machines members[from] to
+     * members[to - 1], or on machines from to to - 1 if members is null.
+     */
+    private void runGroup(int p, int[] members, int from, int to) {
+        if (p == 4095) {
+            // Fetching the second byte runs off the end of memory
+            for (int k = from; k < to; k++) {
+                crashed[member(members, k)] = true;
+            }
+            return;
+        }
+        int opcode = fetch(member(members, from), p);
+        boolean same = true;
+        for (int k = from + 1; k < to && same; k++) {
+            same = fetch(member(members, k), p) == opcode;
+        }
+        if (same && LANES > 0 && to - from >= LANES && vectorizable(opcode)) {
+            int done = LockstepVectors.execute(opcode, v, size, members, from, to);
+            for (int k = from; k < done; k++) {
+                pc[member(members, k)] += 2;
+            }
+            vectorInstructions += done - from;
+            from = done;
+        }
+        for (int k = from; k < to; k++) {
+            int m = member(members, k);
+            execute(m, same ? opcode : fetch(m, p));
+        }
+    }
+
+    private static int member(int[] members, int k) {
+        return members == null ? k : members[k];
+    }
+
+    private int fetch(int m, int address) {
+        int[] mem = memory[m];
+        return ((mem[address] << 8) & 0xFF00) + (mem[address + 1] & 0xFF);
+    }
+
+    /**
+     * Whether LockstepVectors can run opcode: 6xkk, 7xkk and 8xyN, where
+     * the 8xyN with no instruction behind them do nothing in lanes as well.
+     */
+    static boolean vectorizable(int opcode) {
+        int family = opcode >>> 12;
+        return family == 0x6 || family == 0x7 || family == 0x8;
+    }
+
+    /**
+     * Drop machines whose pc left memory from the live list.
+     */
+    private void retire() {
+        int kept = 0;
+        for (int a = 0; a < liveCount; a++) {
+            int m = live[a];
+            if (pc[m] < 0) {
+                // The next fetch would throw
+                crashed[m] = true;
+            }
+            if (!crashed[m] && pc[m] < 4096) {
+                live[kept++] = m;
+            }
+        }
+        liveCount = kept;
+    }
+
+    /**
+     * Run opcode on machine m alone, marking it crashed if the
+     * instruction would have thrown on a Chip8Machine.
+     */
+    private void execute(int m, int opcode) {
+        try {
+            interpret(m, opcode);
+            pc[m] += 2;
+        } catch (IndexOutOfBoundsException e) {
+            crashed[m] = true;
+        }
+    }
+
+    /**
+     * The scalar path, one case per instruction in Instructions with the
+     * same order of reads and writes.
+     */
+    private void interpret(int m, int opcode) {
+        int n = size;
+        int x = (opcode >> 8) & 0xF;
+        int y = (opcode >> 4) & 0xF;
+        int kk = opcode & 0xFF;
+        int nnn = opcode & 0xFFF;
+        int vx = x * n + m;
+        int vy = y * n + m;
+        int vf = 15 * n + m;
+        int[] mem = memory[m];
+        switch (opcode >>> 12) {
+            case 0x0:
+                if (opcode == 0x00E0) {
+                    for (int row = 0; row < ROWS; row++) {
+                        display[m * ROWS + row] = 0L;
+                    }
+                } else if (opcode == 0x00EE) {
+                    pc[m] = stack[m * STACK_DEPTH + Objects.checkIndex(sp[m], STACK_DEPTH)];
+                    sp[m]--;
+                } else {
+                    pc[m] = nnn;
+                }
+                break;
+            case 0x1:
+                pc[m] = nnn - 2;
+                break;
+            case 0x2:
+                sp[m]++;
+                stack[m * STACK_DEPTH + Objects.checkIndex(sp[m], STACK_DEPTH)] = pc[m];
+                pc[m] = nnn - 2;
+                break;
+            case 0x3:
+                if (v[vx] == kk) {
+                    pc[m] += 2;
+                }
+                break;
+            case 0x4:
+                if (v[vx] != kk) {
+                    pc[m] += 2;
+                }
+                break;
+            case 0x5:
+                if (v[vx] == v[vy]) {
+                    pc[m] += 2;
+                }
+                break;
+            case 0x6:
+                v[vx] = kk;
+                break;
+            case 0x7:
+                v[vx] += kk;
+                break;
+            case 0x8:
+                interpret8(opcode & 0xF, vx, vy, vf);
+                break;
+            case 0x9:
+                if ((opcode & 0xF) == 0 && v[vx] != v[vy]) {
+                    pc[m] += 2;
+                }
+                break;
+            case 0xA:
+                i[m] = nnn;
+                break;
+            case 0xB:
+                pc[m] = nnn + v[m];
+                break;
+            case 0xC:
+                v[vx] = random[m].nextInt(256) & kk;
+                break;
+            case 0xD:
+                draw(m, opcode & 0xF, v[vx] & 63, v[vy] & 31, vf);
+                break;
+            case 0xE:
+                if (kk == 0x9E && keyDown(m, v[vx])) {
+                    pc[m] += 2;
+                } else if (kk == 0xA1 && !keyDown(m, v[vx])) {
+                    pc[m] += 2;
+                }
+                break;
+            default:
+                interpretF(m, kk, x, vx, mem);
+                break;
+        }
+    }
+
+    private void interpret8(int op, int vx, int vy, int vf) {
+        switch (op) {
+            case 0x0:
+                v[vx] = v[vy];
+                break;
+            case 0x1:
+                v[vx] = v[vx] | v[vy];
+                break;
+            case 0x2:
+                v[vx] = v[vx] & v[vy];
+                break;
+            case 0x3:
+                v[vx] = v[vx] ^ v[vy];
+                break;
+            case 0x4: {
+                int result = v[vx] + v[vy];
+                v[vf] = result > 255 ? 1 : 0;
+                v[vx] = result & 0xFF;
+                break;
+            }
+            case 0x5: {
+                int result = v[vx] - v[vy];
+                v[vf] = v[vx] > v[vy] ? 1 : 0;
+                v[vx] = result & 0xFF;
+                break;
+            }
+            case 0x6:
+                // Instructions tests the opcode's low nibble, which is 6 here
+                v[vf] = 0;
+                v[vx] = v[vx] >> 1;
+                break;
+            case 0x7:
+                v[vf] = v[vy] > v[vx] ? 1 : 0;
+                v[vx] = v[vy] - v[vx];
+                break;
+            case 0xE:
+                // Likewise VF is always cleared, and Vx is not masked
+                v[vf] = 0;
+                v[vx] = v[vx] << 1;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void interpretF(int m, int kk, int x, int vx, int[] mem) {
+        switch (kk) {
+            case 0x07:
+                v[vx] = delayTimer[m];
+                break;
+            case 0x0A:
+                if (keypad[m] != 0) {
+                    v[vx] = Integer.numberOfTrailingZeros(keypad[m]);
+                } else {
+                    pc[m] -= 2;
+                }
+                break;
+            case 0x15:
+                delayTimer[m] = v[vx];
+                break;
+            case 0x18:
+                soundTimer[m] = v[vx];
+                break;
+            case 0x1E:
+                i[m] = (i[m] + v[vx]) & 0xFFFF;
+                break;
+            case 0x29:
+                i[m] = v[vx] * 5;
+                break;
+            case 0x33:
+                mem[i[m]] = (v[vx] / 100) & 0xFF;
+                mem[i[m] + 1] = ((v[vx] % 100) / 10) & 0xFF;
+                mem[i[m] + 2] = ((v[vx] % 100) % 10) & 0xFF;
+                break;
+            case 0x55: {
+                int base = i[m] & 0xFFF;
+                for (int r = 0; r <= x; r++) {
+                    mem[(base + r) & 0xFFF] = v[r * size + m] & 0xFF;
+                }
+                break;
+            }
+            case 0x65: {
+                int base = i[m] & 0xFFF;
+                for (int r = 0; r <= x; r++) {
+                    v[r * size + m] = mem[(base + r) & 0xFFF];
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    private void draw(int m, int height, int xPos, int yPos, int vf) {
+        int rows = Math.min(height, ROWS - yPos);
+        int[] mem = memory[m];
+        int base = m * ROWS + yPos;
+        int collision = 0;
+        for (int r = 0; r < rows; r++) {
+            long sprite = ((long) (mem[i[m] + r] & 0xFF) << 56) >>> xPos;
+            long row = display[base + r];
+            if ((row & sprite) != 0) {
+                collision = 1;
+            }
+            display[base + r] = row ^ sprite;
+        }
+        v[vf] = collision;
+    }
+
+    private boolean keyDown(int m, int key) {
+        return (key & ~0xF) == 0 && ((keypad[m] >> key) & 1) != 0;
+    }
+
+    /**
+     * A standalone Chip8Machine holding machine m's current state, to
+     * inspect or to carry on running alone. Cxkk's generator is not copied.
+     */
+    Chip8Machine machine(int m) {
+        Chip8Machine machine = new Chip8Machine();
+        machine.pc = pc[m];
+        machine.i = i[m];
+        for (int r = 0; r < 16; r++) {
+            machine.gprs[r] = v[r * size + m];
+            machine.stack[r] = stack[m * STACK_DEPTH + r];
+        }
+        machine.stackPointer = sp[m];
+        machine.delayTimer = delayTimer[m];
+        machine.soundTimer = soundTimer[m];
+        System.arraycopy(memory[m], 0, machine.memory, 0, 4096);
+        System.arraycopy(display, m * ROWS, machine.displayGrid, 0, ROWS);
+        machine.setKeypad(keypad[m]);
+        return machine;
+    }
+}
@@ -0,0 +1,128 @@
+package com.chip8.emulator;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The vector half of LockstepEngine: runs one 6xkk, 7xkk or 8xyN across
+ * many machines' registers at once. Only LockstepEngine calls in, and
+ * only once it has checked jdk.incubator.vector is loaded, so the rest
+ * of the emulator runs without the module.
+ *
+ * Registers are laid out as in LockstepEngine, register r of machine m
+ * at v[r * size + m]. With members null the machines are from to to - 1
+ * and lanes load contiguously; otherwise they are members[from] to
+ * members[to - 1] and lanes gather and scatter through members. A group
+ * never holds a machine twice, so scattered lanes never collide.
+ *
+ * Results match Instructions lane for lane: VF is written before Vx, so
+ * when x is F the Vx result wins, and 8xy7, 8xy6 and 8xyE read their
+ * operands after the VF write.
+ */
+final class LockstepVectors {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    private LockstepVectors() {
+    }
+
+    static int lanes() {
+        return SPECIES.length();
+    }
+
+    /**
+     * Run opcode on as many whole vectors of the group as fit and return
+     * the index of the first member left for the scalar path.
+     */
+    static int execute(int opcode, int[] v, int size, int[] members, int from, int to) {
+        int vx = ((opcode >> 8) & 0xF) * size;
+        int vy = ((opcode >> 4) & 0xF) * size;
+        int vf = 15 * size;
+        int kk = opcode & 0xFF;
+        int end = from + SPECIES.loopBound(to - from);
+        int k = from;
+        switch (opcode >>> 12) {
+            case 0x6:
+                for (IntVector value = IntVector.broadcast(SPECIES, kk); k < end; k += SPECIES.length()) {
+                    store(value, v, vx, members, k);
+                }
+                break;
+            case 0x7:
+                for (; k < end; k += SPECIES.length()) {
+                    store(load(v, vx, members, k).add(kk), v, vx, members, k);
+                }
+                break;
+            default:
+                k = execute8(opcode & 0xF, v, vx, vy, vf, members, k, end);
+                break;
+        }
+        return k;
+    }
+
+    private static int execute8(int op, int[] v, int vx, int vy, int vf, int[] members, int k, int end) {
+        IntVector zero = IntVector.zero(SPECIES);
+        IntVector one = IntVector.broadcast(SPECIES, 1);
+        for (; k < end; k += SPECIES.length()) {
+            IntVector x = load(v, vx, members, k);
+            IntVector y = load(v, vy, members, k);
+            switch (op) {
+                case 0x0:
+                    store(y, v, vx, members, k);
+                    break;
+                case 0x1:
+                    store(x.or(y), v, vx, members, k);
+                    break;
+                case 0x2:
+                    store(x.and(y), v, vx, members, k);
+                    break;
+                case 0x3:
+                    store(x.lanewise(VectorOperators.XOR, y), v, vx, members, k);
+                    break;
+                case 0x4: {
+                    IntVector sum = x.add(y);
+                    store(zero.blend(one, sum.compare(VectorOperators.GT, 255)), v, vf, members, k);
+                    store(sum.and(0xFF), v, vx, members, k);
+                    break;
+                }
+                case 0x5: {
+                    VectorMask<Integer> noBorrow = x.compare(VectorOperators.GT, y);
+                    store(zero.blend(one, noBorrow), v, vf, members, k);
+                    store(x.sub(y).and(0xFF), v, vx, members, k);
+                    break;
+                }
+                case 0x6:
+                    store(zero, v, vf, members, k);
+                    store(load(v, vx, members, k).lanewise(VectorOperators.ASHR, 1), v, vx, members, k);
+                    break;
+                case 0x7:
+                    store(zero.blend(one, y.compare(VectorOperators.GT, x)), v, vf, members, k);
+                    store(load(v, vy, members, k).sub(load(v, vx, members, k)), v, vx, members, k);
+                    break;
+                case 0xE:
+                    store(zero, v, vf, members, k);
+                    store(load(v, vx, members, k).lanewise(VectorOperators.LSHL, 1), v, vx, members, k);
+                    break;
+                default:
+                    // No instruction, as in OpcodeTable
+                    break;
+            }
+        }
+        return k;
+    }
+
+    private static IntVector load(int[] v, int register, int[] members, int k) {
+        return members == null
+                ? IntVector.fromArray(SPECIES, v, register + k)
+                : IntVector.fromArray(SPECIES, v, register, members, k);
+    }
+
+    private static void store(IntVector value, int[] v, int register, int[] members, int k) {
+        if (members == null) {
+            value.intoArray(v, register + k);
+        } else {
+            value.intoArray(v, register, members, k);
+        }
+    }
+}
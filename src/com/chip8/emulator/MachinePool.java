@@ -0,0 +1,106 @@
+package com.chip8.emulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Hosts many machines in one JVM and steps them on a fixed thread pool.
+ * Machines may be created from any thread. A step hands each machine to
+ * exactly one worker and waits for all of them, so a machine is never run
+ * by two threads at once and its state is visible to the caller afterwards.
+ */
+public class MachinePool implements AutoCloseable {
+
+    private final ExecutorService executor;
+    private final List<Hosted> hosted;
+
+    /**
+     * A machine in the pool and the rate its timers tick at.
+     */
+    private static final class Hosted {
+        final Chip8Machine machine;
+        final int instructionsPerSecond;
+
+        Hosted(Chip8Machine machine, int instructionsPerSecond) {
+            this.machine = machine;
+            this.instructionsPerSecond = instructionsPerSecond;
+        }
+    }
+
+    public MachinePool(int threads) {
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "chip8-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        hosted = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * Create count machines with the given program loaded and add them to the pool.
+     */
+    public List<Chip8Machine> create(int count, byte[] program) {
+        return create(count, program, Scheduler.DEFAULT_IPS);
+    }
+
+    /**
+     * As create, with the machines' timers ticking once every
+     * instructionsPerSecond / 60 instructions when stepped.
+     */
+    public List<Chip8Machine> create(int count, byte[] program, int instructionsPerSecond) {
+        List<Chip8Machine> created = new ArrayList<>(count);
+        List<Hosted> added = new ArrayList<>(count);
+        for (int n = 0; n < count; n++) {
+            Chip8Machine machine = new Chip8Machine();
+            machine.loadProgram(program);
+            created.add(machine);
+            added.add(new Hosted(machine, instructionsPerSecond));
+        }
+        hosted.addAll(added);
+        return created;
+    }
+
+    /**
+     * The machines in the pool when called, in the order they were created.
+     */
+    public List<Chip8Machine> machines() {
+        List<Chip8Machine> machines = new ArrayList<>(hosted.size());
+        for (Hosted h : hosted) {
+            machines.add(h.machine);
+        }
+        return List.copyOf(machines);
+    }
+
+    /**
+     * Run every machine for up to cycles instructions in parallel and block
+     * until all of them are done, ticking timers in emulated time at each
+     * machine's own instruction rate. Returns the total instructions executed.
+     */
+    public synchronized long step(long cycles) throws InterruptedException {
+        List<Callable<Long>> tasks = new ArrayList<>(hosted.size());
+        for (Hosted h : hosted) {
+            tasks.add(() -> Scheduler.runUnpaced(h.machine, cycles, h.instructionsPerSecond));
+        }
+
+        long executed = 0;
+        for (Future<Long> result : executor.invokeAll(tasks)) {
+            try {
+                executed += result.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Machine failed while stepping", e.getCause());
+            }
+        }
+        return executed;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -1,396 +1,624 @@
 package com.chip8.emulator;
 
-import javax.swing.*;
-import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.io.*;
-import java.awt.event.KeyEvent;
-
-public class Main extends JFrame {
-
-    static int pc;
-    static int i;
-    static int opcode;
-    static int[] memory;
-    static int[] gprs;
-    static int[] stack;
-    static int stackPointer;
-    static int delayTimer;
-    static int soundTimer;
-    static String filename;
-    static InputHandler input;
-    static boolean keyPressFlag;
-
-    static boolean[][] displayGrid;
-    static boolean[] keyboardState;
-
-    private final int fps;
-    private final int scale;
-    private final int windowWidth;
-    private final int windowHeight;
-
-    private BufferedImage backBuffer;
-    private Insets insets;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import javax.sound.sampled.LineUnavailableException;
+
+public class Main {
+
+    private static final RomLibrary LIBRARY = new RomLibrary();
+    private static final int METRICS_DUMP_SECONDS = 5;
+    private static final int PROFILE_REPORT_LINES = 15;
+    private static final long CONFORMANCE_CYCLES = 1_000_000L;
+    private static final int LOCKSTEP_INPUT_FRAMES = 30;
 
     /**
-     * Initialize default values for the emulator.
-     * Preferences for window size, cps, and most changable default
-     * values are editable in the Main class constructor
+     * Usage: [flags] [rom, directory or zip ...]
+     * With no ROM given the bundled PONG2 is run. Headless runs go through
+     * every ROM given in turn; the window and replays use the first.
+     *
+     * Flags:
+     *   --headless      run without creating a window
+     *   --cycles n      stop a headless run after n instructions
+     *   --machines n    run n headless machines on a thread pool
+     *   --jit           compile hot basic blocks to JVM bytecode
+     *   --ips n         emulated instructions per second
+     *   --fps n         frames presented per second in the window
+     *   --turbo         run the windowed CPU unthrottled and show its speed
+     *   --load file     resume from a save state instead of a fresh machine
+     *   --save file     write a save state when a headless run finishes
+     *   --seed n        seed the random number generator used by Cxkk
+     *   --record file   log the keypad each frame of a windowed session
+     *   --replay file   play a recorded session back headless, flat out
+     *   --repeat n      play the recording n times and check they all agree
+     *   --metrics       count opcodes and time frames, over JMX and on stdout
+     *   --profile file  profile pc and subroutines, write collapsed stacks to file
+     *   --profile-every n  take a profile sample every n instructions
+     *   --conformance file  run every ROM headless in parallel and check
+     *                   its final display and registers against the goldens in file
+     *   --update-goldens  write the goldens file from this run instead
+     *   --capture file  record the window's frames, or the first replay's,
+     *                   to an animated GIF if file ends in .gif, else PNGs in a directory
+     *   --audio mode    line to play the sound timer's tone (the default in
+     *                   the window), null to time it without a sound device, or
+     *                   off (the default headless); headless audio runs in real time
+     *   --fuzz dir      mutate the ROMs and fuzz them on every core, writing
+     *                   minimised crashes and hangs to dir; with --jit, also
+     *                   any difference between the JIT and the interpreter
+     *   --fuzz-cases n  stop fuzzing after n cases rather than when killed
+     *   --serve port    run every ROM (times --machines) paced without a window
+     *                   and stream the displays to viewers on localhost:port
+     *   --lockstep n    run n copies of every ROM in lockstep, vectorised where
+     *                   they agree, for --cycles instructions each
      */
-    private Main() {
-        fps = 180;
-        scale = 8;
-        windowWidth = 64 * scale;
-        windowHeight = 32 * scale;
-        pc = 0x200;
-        i = 0;
-        memory = new int[4096];
-        gprs = new int[16];
-        displayGrid = new boolean[32][64];
-        keyboardState = new boolean[16];
-        stack = new int[16];
-        stackPointer = 0;
-        delayTimer = 0;
-        soundTimer = 0;
-        opcode = 0;
-        keyPressFlag = false;
-        filename = "PONG2";
-        // filename = args[0];
-    }
-
-
     public static void main(String[] args) {
-        Main m = new Main();
-        initializeHexSprites();
-        loadProgram();
-        m.run();
-        System.exit(0);
-    }
-    
-    private void run() {
-
-        initializeJFrame();
-
-        boolean isRunning = true;
-
-        while (isRunning) {
-            long time = System.currentTimeMillis();
-            // Clear the keyboard state before beginning cycle
-            keyboardStateUpdater(0, false);
-            update();
-            draw();
-
-            if (pc >= 4096) {
-                emulateCycle(false);
-                isRunning = false;
-            } else {
-                String before = Integer.toHexString(gprs[0]);
-                // System.out.println("Before V0: " + before);
-                emulateCycle(true);
-                String after = Integer.toHexString(gprs[0]);
-                // System.out.println("After V0: " + after);
+        List<String> romPaths = new ArrayList<>();
+        boolean headless = false;
+        long maxCycles = 10_000_000L;
+        boolean cyclesGiven = false;
+        int machines = 1;
+        boolean jit = false;
+        int ips = Scheduler.DEFAULT_IPS;
+        int fps = Scheduler.DEFAULT_FPS;
+        boolean turbo = false;
+        String loadFile = null;
+        String saveFile = null;
+        Long seed = null;
+        String recordFile = null;
+        String replayFile = null;
+        int repeat = 1;
+        boolean metrics = false;
+        String profileFile = null;
+        int profileEvery = 1;
+        String goldensFile = null;
+        boolean updateGoldens = false;
+        Integer servePort = null;
+        String captureFile = null;
+        String audioMode = null;
+        String fuzzDir = null;
+        long fuzzCases = 0;
+        int lockstep = 0;
+        for (int a = 0; a < args.length; a++) {
+            if (args[a].equals("--headless")) {
+                headless = true;
+            } else if (args[a].equals("--cycles") && a + 1 < args.length) {
+                maxCycles = Long.parseLong(args[++a]);
+                cyclesGiven = true;
+            } else if (args[a].equals("--machines") && a + 1 < args.length) {
+                machines = Integer.parseInt(args[++a]);
+            } else if (args[a].equals("--jit")) {
+                jit = true;
+            } else if (args[a].equals("--ips") && a + 1 < args.length) {
+                ips = Integer.parseInt(args[++a]);
+            } else if (args[a].equals("--fps") && a + 1 < args.length) {
+                fps = Integer.parseInt(args[++a]);
+            } else if (args[a].equals("--turbo")) {
+                turbo = true;
+            } else if (args[a].equals("--load") && a + 1 < args.length) {
+                loadFile = args[++a];
+            } else if (args[a].equals("--save") && a + 1 < args.length) {
+                saveFile = args[++a];
+            } else if (args[a].equals("--seed") && a + 1 < args.length) {
+                seed = Long.parseLong(args[++a]);
+            } else if (args[a].equals("--record") && a + 1 < args.length) {
+                recordFile = args[++a];
+            } else if (args[a].equals("--replay") && a + 1 < args.length) {
+                replayFile = args[++a];
+            } else if (args[a].equals("--repeat") && a + 1 < args.length) {
+                repeat = Integer.parseInt(args[++a]);
+            } else if (args[a].equals("--metrics")) {
+                metrics = true;
+            } else if (args[a].equals("--profile") && a + 1 < args.length) {
+                profileFile = args[++a];
+            } else if (args[a].equals("--profile-every") && a + 1 < args.length) {
+                profileEvery = Integer.parseInt(args[++a]);
+            } else if (args[a].equals("--conformance") && a + 1 < args.length) {
+                goldensFile = args[++a];
+            } else if (args[a].equals("--update-goldens")) {
+                updateGoldens = true;
+            } else if (args[a].equals("--capture") && a + 1 < args.length) {
+                captureFile = args[++a];
+            } else if (args[a].equals("--fuzz") && a + 1 < args.length) {
+                fuzzDir = args[++a];
+            } else if (args[a].equals("--fuzz-cases") && a + 1 < args.length) {
+                fuzzCases = Long.parseLong(args[++a]);
+            } else if (args[a].equals("--audio") && a + 1 < args.length) {
+                audioMode = args[++a];
+            } else if (args[a].equals("--serve") && a + 1 < args.length) {
+                servePort = Integer.parseInt(args[++a]);
+            } else if (args[a].equals("--lockstep") && a + 1 < args.length) {
+                lockstep = Integer.parseInt(args[++a]);
+            } else if (!args[a].startsWith("--")) {
+                romPaths.add(args[a]);
             }
+        }
 
-            time = (1000 / fps) - (System.currentTimeMillis() - time);
+        List<Rom> roms = new ArrayList<>();
+        try {
+            for (String path : romPaths) {
+                roms.addAll(LIBRARY.load(Paths.get(path)));
+            }
+            if (romPaths.isEmpty()) {
+                roms.addAll(LIBRARY.load(bundled("PONG2")));
+            }
+        } catch (IOException e) {
+            System.err.println("Could not load ROMs: " + e);
+            System.exit(1);
+        }
+        if (roms.isEmpty()) {
+            System.err.println("No ROMs found in " + romPaths);
+            System.exit(1);
+        }
+        if (roms.size() > 1) {
+            System.out.println("Loaded " + roms.size() + " ROMs, " + LIBRARY.size() + " distinct");
+        }
 
-            if (time > 0) {
-                try {
-                    Thread.sleep(time);
-                } catch (Exception ignored) {
+        if (goldensFile != null) {
+            int status = 1;
+            try {
+                Path goldens = Paths.get(goldensFile);
+                status = runConformance(ConformanceRunner.withoutGoldens(roms, goldens), goldens, updateGoldens,
+                        cyclesGiven ? maxCycles : CONFORMANCE_CYCLES, ips, jit);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            System.exit(status);
+        }
+        if (fuzzDir != null) {
+            long fuzzSeed = seed != null ? seed : System.nanoTime();
+            int threads = Runtime.getRuntime().availableProcessors();
+            System.out.println("Fuzzing with seed " + fuzzSeed + " on " + threads + " threads");
+            Fuzzer fuzzer = new Fuzzer(roms, fuzzSeed, cyclesGiven ? maxCycles : Fuzzer.DEFAULT_CYCLES, ips, jit,
+                    Paths.get(fuzzDir));
+            try {
+                fuzzer.run(threads, fuzzCases);
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            System.exit(0);
+        }
+        if (servePort != null) {
+            try {
+                serve(roms, machines, servePort, ips, fps, jit);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            System.exit(0);
+        }
+        if (lockstep > 0) {
+            long lockstepSeed = seed != null ? seed : System.nanoTime();
+            for (Rom rom : roms) {
+                if (roms.size() > 1) {
+                    System.out.println("ROM: " + rom.name());
                 }
+                runLockstep(rom.program(), lockstep, maxCycles, ips, lockstepSeed);
+            }
+            System.exit(0);
+        }
+        if (replayFile != null) {
+            try {
+                InputReplay replay = InputReplay.read(Paths.get(replayFile));
+                FrameCapture capture = captureFile == null ? null : new FrameCapture(Paths.get(captureFile),
+                        FrameCapture.DEFAULT_SCALE, Scheduler.TIMER_HZ, FrameCapture.DEFAULT_POOL, true);
+                runReplay(roms.get(0).program(), replay, repeat, jit, capture);
+                if (capture != null) {
+                    finishCapture(capture, captureFile);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+            System.exit(0);
         }
+        for (Rom rom : headless ? roms : roms.subList(0, 1)) {
+            byte[] program = rom.program();
+            if (roms.size() > 1) {
+                System.out.println("ROM: " + rom.name());
+            }
+            if (headless && machines > 1) {
+                runPool(program, machines, maxCycles, ips, jit);
+                continue;
+            }
+            Chip8Machine machine = new Chip8Machine();
+            machine.loadProgram(program);
+            if (jit) {
+                machine.enableJit();
+            }
+            Runnable profileAtEnd = null;
+            if (recordFile != null && seed == null) {
+                seed = System.nanoTime();
+            }
+            if (seed != null) {
+                machine.setSeed(seed);
+            }
+            Metrics machineMetrics = null;
+            if (metrics) {
+                machineMetrics = new Metrics();
+                machine.setTracer(machineMetrics);
+                machineMetrics.start(METRICS_DUMP_SECONDS);
+            }
+            if (profileFile != null) {
+                Profiler profiler = new Profiler(profileEvery);
+                machine.setTracer(Tracer.chain(machine.tracer, profiler));
+                Path collapsed = Paths.get(profileFile);
+                Runnable writeProfile = () -> writeProfile(profiler, machine, collapsed);
+                if (headless) {
+                    profileAtEnd = writeProfile;
+                } else {
+                    // The window exits the JVM when closed
+                    Runtime.getRuntime().addShutdownHook(new Thread(writeProfile));
+                }
+            }
+            Audio audio = openAudio(audioMode != null ? audioMode : headless ? "off" : "line");
+            try {
+                if (loadFile != null) {
+                    SaveState.read(machine, Paths.get(loadFile));
+                }
+                if (headless) {
+                    runHeadless(machine, maxCycles, ips, audio);
+                } else {
+                    InputRecorder recorder = null;
+                    if (recordFile != null) {
+                        recorder = new InputRecorder(Paths.get(recordFile), seed, ips, program);
+                        // The window exits the JVM when closed, so finish the log on the way out
+                        InputRecorder log = recorder;
+                        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                            try {
+                                log.close();
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                        }));
+                    }
+                    Screen screen = new Screen(machine);
+                    if (machineMetrics != null) {
+                        screen.instrument(machineMetrics);
+                    }
+                    if (captureFile != null) {
+                        FrameCapture capture = new FrameCapture(Paths.get(captureFile),
+                                FrameCapture.DEFAULT_SCALE, fps, FrameCapture.DEFAULT_POOL, false);
+                        screen.capture(capture);
+                        String file = captureFile;
+                        Runtime.getRuntime().addShutdownHook(new Thread(() -> finishCapture(capture, file)));
+                    }
+                    if (audio != null) {
+                        screen.sound(audio);
+                        Runtime.getRuntime().addShutdownHook(new Thread(() -> finishAudio(audio)));
+                    }
+                    screen.run(ips, fps, turbo, recorder);
+                }
+                if (saveFile != null) {
+                    SaveState.write(machine, Paths.get(saveFile));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (machineMetrics != null) {
+                System.out.print(machineMetrics.summary());
+                machineMetrics.close();
+            }
+            if (profileAtEnd != null) {
+                profileAtEnd.run();
+            }
+        }
+        System.exit(0);
     }
 
     /**
-     * Initialize the JFrame, insets are used to ensure the size of the frame
-     * does not interfere with the OS window. This preserves a scale * (64,32)
-     * display to be used by the emulator.
+     * Drive emulateCycle as fast as possible without touching any AWT class,
+     * then report the instruction count, the wall time and the final display.
+     * Timers tick once per ips / 60 instructions, keeping emulated time.
+     * With audio the run is paced in real time instead, so the sound timer
+     * is played and its latency measured as in the window.
      */
-    private void initializeJFrame() {
-        setTitle("Chip8");
-        setSize(windowWidth, windowHeight);
-        setResizable(false);
-        setDefaultCloseOperation(EXIT_ON_CLOSE);
-        setVisible(true);
-
-        insets = getInsets();
-        setSize(insets.left + windowWidth + insets.right, insets.top + windowHeight + insets.bottom);
+    private static void runHeadless(Chip8Machine machine, long maxCycles, int ips, Audio audio) {
+        long start = System.nanoTime();
+        long executed = audio == null
+                ? Scheduler.runUnpaced(machine, maxCycles, ips)
+                : Scheduler.runRealTime(machine, maxCycles, ips, audio::update);
+        long elapsed = System.nanoTime() - start;
+        if (audio != null) {
+            finishAudio(audio);
+        }
 
-        backBuffer = new BufferedImage(windowWidth, windowHeight, BufferedImage.TYPE_INT_RGB);
-        input = new InputHandler(this);
+        report(executed, elapsed);
+        if (machine.idleInstructions() > 0) {
+            System.out.printf("Skipped in timer wait loops: %,d instructions%n", machine.idleInstructions());
+        }
+        printDisplay(machine);
     }
 
     /**
-     * Once a cycle draw the display onto the screen.
-     * a backBuffer is used to provide double buffering.
-     * This is not yet optimal as the displays refresh rate is tied to cps.
-     * TODO draw according to a frame rate and execute at a defined rate.
+     * Play a recorded session back repeat times, each on a fresh machine,
+     * then report the throughput over all of them and whether every run
+     * ended in exactly the same state. The first run is captured if capture
+     * is not null.
      */
-    private void draw() {
-        Graphics g = getGraphics();
-        Graphics bbg = backBuffer.getGraphics();
-
-        bbg.setColor(Color.BLACK);
-        bbg.fillRect(0, 0, windowWidth, windowHeight);
-        bbg.drawRect(0, 0, scale, scale);
-
-        for (int row = 0; row < windowHeight; row++) {
-            for (int col = 0; col < windowWidth; col++) {
-                if (Main.displayGrid[row / scale][col / scale]) {
-                    bbg.setColor(Color.WHITE);
-                } else {
-                    bbg.setColor(Color.BLACK);
-                }
-                bbg.drawRect(col, row, scale, scale);
+    private static void runReplay(byte[] program, InputReplay replay, int repeat, boolean jit,
+                                  FrameCapture capture) {
+        replay.checkProgram(program);
+        byte[] first = null;
+        boolean identical = true;
+        Chip8Machine machine = null;
+        long executed = 0;
+        long start = System.nanoTime();
+        for (int run = 0; run < repeat; run++) {
+            machine = new Chip8Machine();
+            machine.loadProgram(program);
+            if (jit) {
+                machine.enableJit();
+            }
+            FrameSink sink = capture != null && run == 0 ? capture::frame : null;
+            executed += replay.play(machine, sink);
+            byte[] state = SaveState.save(machine);
+            if (first == null) {
+                first = state;
+            } else if (!Arrays.equals(first, state)) {
+                identical = false;
             }
         }
-        g.drawImage(backBuffer, insets.left, insets.top, this);
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println("Replayed " + replay.frames() + " frames " + repeat + " times");
+        report(executed, elapsed);
+        System.out.println("Replays identical: " + identical);
+        printDisplay(machine);
     }
 
     /**
-     * This method that runs once a cycle checks for keys that
-     * are in the down position and runs the keyboardStateUpdater
-     * method to update keyboardState[]
+     * The audio output for mode, or null if it is off or there is no sound device.
      */
-    private void update() {
-        if (Main.input.isKeyDown(KeyEvent.VK_S)) {
-            keyboardStateUpdater(0, true);
-        } else if (Main.input.isKeyDown(KeyEvent.VK_1)) {
-            keyboardStateUpdater(1, true);
-        } else if (Main.input.isKeyDown(KeyEvent.VK_2)) {
-            keyboardStateUpdater(2, true);
-        } else if (Main.input.isKeyDown(KeyEvent.VK_3)) {
-            keyboardStateUpdater(3, true);
-        } else if (Main.input.isKeyDown(KeyEvent.VK_4)) {
-            keyboardStateUpdater(4, true);
-        } else if (Main.input.isKeyDown(KeyEvent.VK_Q)) {
-            keyboardStateUpdater(5, true);
-        } else if (Main.input.isKeyDown(KeyEvent.VK_W)) {
-            keyboardStateUpdater(6, true);
-        } else if (Main.input.isKeyDown(KeyEvent.VK_E)) {
-            keyboardStateUpdater(7, true);
-        } else if (Main.input.isKeyDown(KeyEvent.VK_R)) {
-            keyboardStateUpdater(8, true);
-        } else if (Main.input.isKeyDown(KeyEvent.VK_A)) {
-            keyboardStateUpdater(9, true);
-        } else if (Main.input.isKeyDown(KeyEvent.VK_D)) {
-            keyboardStateUpdater(0xA, true);
-        } else if (Main.input.isKeyDown(KeyEvent.VK_F)) {
-            keyboardStateUpdater(0xB, true);
-        } else if (Main.input.isKeyDown(KeyEvent.VK_Z)) {
-            keyboardStateUpdater(0xC, true);
-        } else if (Main.input.isKeyDown(KeyEvent.VK_X)) {
-            keyboardStateUpdater(0xD, true);
-        } else if (Main.input.isKeyDown(KeyEvent.VK_C)) {
-            keyboardStateUpdater(0xE, true);
-        } else if (Main.input.isKeyDown(KeyEvent.VK_V)) {
-            keyboardStateUpdater(0xF, true);
+    private static Audio openAudio(String mode) {
+        switch (mode) {
+            case "line":
+                try {
+                    return new Audio(Audio.line());
+                } catch (LineUnavailableException | IllegalArgumentException e) {
+                    System.err.println("No sound device, audio off: " + e.getMessage());
+                    return null;
+                }
+            case "null":
+                return new Audio(Audio.nullOutput());
+            case "off":
+                return null;
+            default:
+                throw new IllegalArgumentException("--audio must be line, null or off, not " + mode);
         }
     }
 
     /**
-     * Used at the start of every cycle with the False
-     * flag to clear the keyboard, Used in conjunction with update()
-     * once a cycle to detect keys that have been pressed.
+     * Stop the audio thread and print how long beeps took to be heard.
      */
-    private void keyboardStateUpdater(int i, boolean toggle) {
-        if (toggle == true) {
-            keyboardState[i] = true;
-            keyPressFlag = true;
-        } else {
-            keyboardState = new boolean[16];
-            keyPressFlag = false;
+    private static void finishAudio(Audio audio) {
+        audio.close();
+        Histogram latency = audio.latency();
+        if (latency.count() > 0) {
+            System.out.printf("Audio latency ms: p50 %.1f p99 %.1f max %.1f (%d beeps)%n",
+                    latency.percentile(50) / 1e6, latency.percentile(99) / 1e6,
+                    latency.max() / 1e6, latency.count());
         }
     }
 
     /**
-     * Determine the opcode from two memory addresses,
-     * run the decoder using the resolved opcode, increment the pc,
-     * lastly timers are incremented when they are greater than 0
+     * Let the capture encoder finish and say how it went.
      */
-    private static void emulateCycle(boolean performCycle) {
-        if (performCycle) {
-            opcode = ((memory[pc] << 8) & 0xFF00) + ((memory[pc + 1]) & 0xFF);
-            decoder();
-            pc += 2;
-            decrementTimers();
+    private static void finishCapture(FrameCapture capture, String file) {
+        try {
+            capture.close();
+            System.out.println("Captured " + capture.written() + " frames to " + file
+                    + ", dropped " + capture.dropped());
+        } catch (IOException e) {
+            System.err.println("Capture to " + file + " failed: " + e);
         }
     }
 
     /**
-     * Load the program from a specified file
-     * using a DataInputStream that takes in a FileInputStream
-     * then the resultant byte[] generated from the file is copied into
-     * memory starting at 0x200
+     * Run copies of every ROM as sessions, each paced on its own thread,
+     * and stream them to viewers until the process is killed.
      */
-    private static void loadProgram() {
-        String workingDirectory = System.getProperty("user.dir");
-        System.out.println("Gradles user.dir is: " + workingDirectory);
-        String pathname = workingDirectory + "/src/com/chip8/emulator/" + filename;
-        File file = new File(pathname);
-        byte[] fileData = new byte[(int) file.length()];
-        DataInputStream dis = null;
-        try {
-            dis = new DataInputStream(new FileInputStream(file));
-            try {
-                dis.readFully(fileData);
-                dis.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+    private static void serve(List<Rom> roms, int copies, int port, int ips, int fps, boolean jit)
+            throws IOException {
+        FrameServer server = new FrameServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        List<Thread> threads = new ArrayList<>();
+        for (Rom rom : roms) {
+            for (int copy = 0; copy < copies; copy++) {
+                Chip8Machine machine = new Chip8Machine();
+                machine.loadProgram(rom.program());
+                if (jit) {
+                    machine.enableJit();
+                }
+                Scheduler scheduler = new Scheduler(machine, ips, fps, server.session(machine));
+                System.out.println("Session " + threads.size() + ": " + rom.name());
+                threads.add(new Thread(scheduler::run, "chip8-session-" + threads.size()));
             }
-            int max = fileData.length;
-            for (int i = 0; i < max; i++) {
-                memory[i + 512] = fileData[i] & 0xFFFF;
+        }
+        server.start();
+        System.out.println("Serving " + threads.size() + " sessions on localhost:" + server.port());
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
             }
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        server.close();
     }
 
     /**
-     * After each cycle times are decremented by 1 if they
-     * are greater than 0
+     * Run the conformance suite over every ROM and print one line per ROM
+     * that is not a pass. Returns the exit status, non-zero if any ROM
+     * failed or crashed.
      */
-    private static void decrementTimers() {
-        if (delayTimer > 0) {
-            delayTimer--;
+    private static int runConformance(List<Rom> roms, Path goldensFile, boolean update,
+                                      long cycles, int ips, boolean jit) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ConformanceRunner runner = new ConformanceRunner(threads, cycles, ips, jit);
+        List<ConformanceRunner.Result> results;
+        long start = System.nanoTime();
+        try {
+            results = runner.run(roms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
         }
-        if (soundTimer > 0) {
-            soundTimer--;
+        long elapsed = System.nanoTime() - start;
+
+        if (update) {
+            ConformanceRunner.writeGoldens(goldensFile, results);
+            System.out.println("Wrote goldens for " + results.size() + " ROMs to " + goldensFile);
+            return 0;
         }
+        Map<String, String> goldens = ConformanceRunner.readGoldens(goldensFile);
+        int passed = 0;
+        int failed = 0;
+        int added = 0;
+        long executed = 0;
+        for (ConformanceRunner.Result result : results) {
+            executed += result.instructions;
+            String golden = goldens.get(result.rom.hash());
+            if (result.error != null) {
+                System.out.println("CRASH " + result.rom.name() + ": " + result.error);
+                failed++;
+            } else if (golden == null) {
+                System.out.println("NEW   " + result.rom.name() + " " + result.fingerprint());
+                added++;
+            } else if (golden.equals(result.fingerprint())) {
+                passed++;
+            } else {
+                System.out.println("FAIL  " + result.rom.name() + ": expected " + golden
+                        + ", got " + result.fingerprint());
+                failed++;
+            }
+        }
+        System.out.printf("Conformance: %d passed, %d failed, %d without goldens, %d ROMs on %d threads%n",
+                passed, failed, added, results.size(), threads);
+        report(executed, elapsed);
+        return failed == 0 ? 0 : 1;
     }
 
-    /**
-     * Using bit-masking of the opcode the decoder runs the
-     * appropriate method according to the given opcode
-     */
-    private static void decoder() {
-        // String hexOpcode = Integer.toHexString(pc);
-        // String hex = Integer.toHexString(opcode);
-        // System.out.println(hexOpcode + " " + hex);
+    private static void writeProfile(Profiler profiler, Chip8Machine machine, Path collapsed) {
+        profiler.report(machine, new PrintWriter(System.out), PROFILE_REPORT_LINES);
+        try {
+            profiler.writeCollapsed(collapsed);
+            System.out.println("Collapsed stacks written to " + collapsed);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-        if ((opcode & 0xF000) == 0x0000) {
-            if ((opcode & 0xFFFF) == 0x00E0) {
-                Instructions.i00E0();
-            } else if ((opcode & 0xFFFF) == 0x00EE) {
-                Instructions.i00EE();
-            } else {
-                Instructions.i0nnn();
+    private static void printDisplay(Chip8Machine machine) {
+        System.out.println("Final displayGrid:");
+        StringBuilder sb = new StringBuilder();
+        for (int y = 0; y < 32; y++) {
+            for (int x = 0; x < 64; x++) {
+                sb.append(machine.pixel(x, y) ? '#' : '.');
             }
-        } else if ((opcode & 0xF000) == 0x1000) {
-            Instructions.i1nnn();
-        } else if ((opcode & 0xF000) == 0x2000) {
-            Instructions.i2nnn();
-        } else if ((opcode & 0xF000) == 0x3000) {
-            Instructions.i3xkk();
-        } else if ((opcode & 0xF000) == 0x4000) {
-            Instructions.i4xkk();
-        } else if ((opcode & 0xF000) == 0x5000) {
-            Instructions.i5xy0();
-        } else if ((opcode & 0xF000) == 0x6000) {
-            Instructions.i6xkk();
-        } else if ((opcode & 0xF000) == 0x7000) {
-            Instructions.i7xkk();
-        } else if ((opcode & 0xF000) == 0x8000) {
-            decoder8(opcode & 0x000F);
-        } else if ((opcode & 0xF00F) == 0x9000) {
-            Instructions.i9xy0();
-        } else if ((opcode & 0xF000) == 0xA000) {
-            Instructions.iAnnn();
-        } else if ((opcode & 0xF000) == 0xB000) {
-            Instructions.iBnnn();
-        } else if ((opcode & 0xF000) == 0xC000) {
-            Instructions.iCxkk();
-        } else if ((opcode & 0xF000) == 0xD000) {
-            Instructions.iDxyn();
-        } else if ((opcode & 0xF0FF) == 0xE09E) {
-            Instructions.iEx9E();
-        } else if ((opcode & 0xF0FF) == 0xE0A1) {
-            Instructions.iExA1();
-        } else if ((opcode & 0xF000) == 0xF000) {
-            decoderF(opcode & 0x00FF);
+            sb.append('\n');
         }
+        System.out.print(sb);
     }
 
     /**
-     * Simplification method used to determine which 0x8000
-     * Instruction to use
+     * Run many machines on every core and report the aggregate throughput.
      */
-    private static void decoder8(int lsBits) {
-        if (lsBits == 0) {
-            Instructions.i8xy0();
-        } else if (lsBits == 1) {
-            Instructions.i8xy1();
-        } else if (lsBits == 2) {
-            Instructions.i8xy2();
-        } else if (lsBits == 3) {
-            Instructions.i8xy3();
-        } else if (lsBits == 4) {
-            Instructions.i8xy4();
-        } else if (lsBits == 5) {
-            Instructions.i8xy5();
-        } else if (lsBits == 6) {
-            Instructions.i8xy6();
-        } else if (lsBits == 7) {
-            Instructions.i8xy7();
-        } else if (lsBits == 0xE) {
-            Instructions.i8xyE();
+    private static void runPool(byte[] program, int machines, long maxCycles, int ips, boolean jit) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        try (MachinePool pool = new MachinePool(threads)) {
+            for (Chip8Machine machine : pool.create(machines, program, ips)) {
+                if (jit) {
+                    machine.enableJit();
+                }
+            }
+            long start = System.nanoTime();
+            long executed = pool.step(maxCycles);
+            long elapsed = System.nanoTime() - start;
+            System.out.println("Machines: " + machines + " on " + threads + " threads");
+            report(executed, elapsed);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
-     * Simplification method used to determine which 0xF000
-     * Instruction to use
+     * Run machines copies of program in a LockstepEngine for maxCycles
+     * instructions each. Machine m gets seed + m for Cxkk, and every
+     * LOCKSTEP_INPUT_FRAMES frames each machine may press a random key,
+     * so the copies diverge the way a search over inputs makes them.
      */
-    private static void decoderF(int lsByte) {
-        if (lsByte == 0x07) {
-            Instructions.iFx07();
-        } else if (lsByte == 0x0A) {
-            Instructions.iFx0A();
-        } else if (lsByte == 0x15) {
-            Instructions.iFx15();
-        } else if (lsByte == 0x18) {
-            Instructions.iFx18();
-        } else if (lsByte == 0x1E) {
-            Instructions.iFx1E();
-        } else if (lsByte == 0x29) {
-            Instructions.iFx29();
-        } else if (lsByte == 0x33) {
-            Instructions.iFx33();
-        } else if (lsByte == 0x55) {
-            Instructions.iFx55();
-        } else if (lsByte == 0x65) {
-            Instructions.iFx65();
+    private static void runLockstep(byte[] program, int machines, long maxCycles, int ips, long seed) {
+        LockstepEngine engine = new LockstepEngine(program, machines);
+        for (int m = 0; m < machines; m++) {
+            engine.setSeed(m, seed + m);
+        }
+        Random input = new Random(seed);
+        int perTick = Math.max(1, ips / Scheduler.TIMER_HZ);
+        long frames = (maxCycles + perTick - 1) / perTick;
+
+        long start = System.nanoTime();
+        for (long frame = 0; frame < frames && engine.running() > 0; frame++) {
+            if (frame % LOCKSTEP_INPUT_FRAMES == 0) {
+                for (int m = 0; m < machines; m++) {
+                    engine.setKeypad(m, input.nextInt(4) == 0 ? 1 << input.nextInt(16) : 0);
+                }
+            }
+            engine.runFrame(perTick);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        String lanes = LockstepEngine.LANES > 0 ? LockstepEngine.LANES + " vector lanes" : "scalar only";
+        System.out.println("Lockstep: " + machines + " machines, " + lanes + ", seed " + seed);
+        report(engine.instructions(), elapsed);
+        long vectorised = engine.vectorInstructions();
+        System.out.printf("Vectorised: %,d instructions (%.1f%%), %.1f pc groups per step%n", vectorised,
+                engine.instructions() > 0 ? 100.0 * vectorised / engine.instructions() : 0,
+                engine.averageGroups());
+        int crashed = 0;
+        for (int m = 0; m < machines; m++) {
+            if (engine.isCrashed(m)) {
+                crashed++;
+            }
+        }
+        if (crashed > 0) {
+            System.out.println("Crashed: " + crashed + " machines");
         }
+        printDisplay(engine.machine(0));
+    }
+
+    private static void report(long executed, long elapsed) {
+        double millis = elapsed / 1_000_000.0;
+        double ips = elapsed > 0 ? executed * 1_000_000_000.0 / elapsed : 0;
+        System.out.println("Instructions executed: " + executed);
+        System.out.printf("Wall time: %.3f ms (%.0f instructions/s)%n", millis, ips);
     }
 
     /**
-     * The built in character sprites are placed in the first
-     * 80 locations in memory, accessed with index * 5.
+     * Load one of the ROMs bundled next to the sources through the ROM
+     * library, so repeated loads are served from its cache. The returned
+     * array is shared and is later copied into machine memory at 0x200.
      */
-    private static void initializeHexSprites() {
-        char[] fontSet = {
-                0xF0, 0x90, 0x90, 0x90, 0xF0, // 0
-                0x20, 0x60, 0x20, 0x20, 0x70, // 1
-                0xF0, 0x10, 0xF0, 0x80, 0xF0, // 2
-                0xF0, 0x10, 0xF0, 0x10, 0xF0, // 3
-                0x90, 0x90, 0xF0, 0x10, 0x10, // 4
-                0xF0, 0x80, 0xF0, 0x10, 0xF0, // 5
-                0xF0, 0x80, 0xF0, 0x90, 0xF0, // 6
-                0xF0, 0x10, 0x20, 0x40, 0x40, // 7
-                0xF0, 0x90, 0xF0, 0x90, 0xF0, // 8
-                0xF0, 0x90, 0xF0, 0x10, 0xF0, // 9
-                0xF0, 0x90, 0xF0, 0x90, 0x90, // A
-                0xE0, 0x90, 0xE0, 0x90, 0xE0, // B
-                0xF0, 0x80, 0x80, 0x80, 0xF0, // C
-                0xE0, 0x90, 0x90, 0x90, 0xE0, // D
-                0xF0, 0x80, 0xF0, 0x80, 0xF0, // E
-                0xF0, 0x80, 0xF0, 0x80, 0x80  // F
-        };
-
-        for (int i = 0; i < 80; i++) {
-            memory[i] = (int) fontSet[i];
+    static byte[] loadProgram(String filename) {
+        try {
+            return LIBRARY.load(bundled(filename)).get(0).program();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
-}
\ No newline at end of file
+
+    private static Path bundled(String filename) {
+        return Paths.get(System.getProperty("user.dir"), "src", "com", "chip8", "emulator", filename);
+    }
+}
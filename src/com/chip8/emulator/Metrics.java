@@ -0,0 +1,265 @@
+package com.chip8.emulator;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Runtime metrics for one machine: executions per instruction kind, the
+ * instruction rate, and histograms of frame time and render time.
+ *
+ * Counting is done as the machine's Tracer, so a machine without metrics
+ * attached pays nothing but a null check. With them attached each
+ * instruction costs one table load and one increment. The counters are
+ * written only by the emulation thread; readers on other threads may see
+ * them a moment out of date, which is fine for monitoring.
+ *
+ * Once started, the metrics are registered as an MXBean and a daemon
+ * thread samples the instruction rate every second and prints a summary
+ * to stdout every dumpSeconds.
+ */
+final class Metrics implements Tracer, MetricsMXBean, AutoCloseable {
+
+    static final String OBJECT_NAME = "com.chip8.emulator:type=Metrics";
+
+    private static final String[] KINDS = {
+        "0nnn", "00E0", "00EE", "1nnn", "2nnn", "3xkk", "4xkk", "5xy0", "6xkk", "7xkk",
+        "8xy0", "8xy1", "8xy2", "8xy3", "8xy4", "8xy5", "8xy6", "8xy7", "8xyE", "9xy0",
+        "Annn", "Bnnn", "Cxkk", "Dxyn", "Ex9E", "ExA1", "Fx07", "Fx0A", "Fx15", "Fx18",
+        "Fx1E", "Fx29", "Fx33", "Fx55", "Fx65", "unknown"
+    };
+    private static final byte[] KIND = new byte[0x10000];
+
+    static {
+        Map<String, Integer> index = new LinkedHashMap<>();
+        for (int k = 0; k < KINDS.length; k++) {
+            index.put(KINDS[k], k);
+        }
+        for (int opcode = 0; opcode < KIND.length; opcode++) {
+            KIND[opcode] = (byte) (int) index.get(kindOf(opcode));
+        }
+    }
+
+    private final long[] counts = new long[KINDS.length];
+    private final Histogram frameTime = new Histogram();
+    private final Histogram renderTime = new Histogram();
+    private volatile double instructionsPerSecond;
+    private long sampledInstructions;
+    private long sampledAt;
+    private ScheduledExecutorService sampler;
+
+    @Override
+    public void instruction(Chip8Machine m, int pc, Opcode op) {
+        counts[KIND[op.opcode]]++;
+    }
+
+    /**
+     * Wrap a frame sink so the time between frames and the time spent
+     * presenting each one are recorded.
+     */
+    FrameSink instrument(FrameSink sink) {
+        return new FrameSink() {
+            private long lastFrame;
+
+            @Override
+            public void present(Chip8Machine machine) {
+                long start = System.nanoTime();
+                if (lastFrame != 0) {
+                    frameTime.record(start - lastFrame);
+                }
+                lastFrame = start;
+                sink.present(machine);
+                renderTime.record(System.nanoTime() - start);
+            }
+
+            @Override
+            public void reportSpeed(long instructionsPerSecond, double multiple) {
+                sink.reportSpeed(instructionsPerSecond, multiple);
+            }
+        };
+    }
+
+    /**
+     * Register the MXBean and start sampling, printing a summary every dumpSeconds.
+     */
+    void start(int dumpSeconds) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            System.err.println("Metrics not registered over JMX: " + e);
+        }
+        sampledAt = System.nanoTime();
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chip8-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        sampler.scheduleAtFixedRate(this::sample, 1, 1, TimeUnit.SECONDS);
+        sampler.scheduleAtFixedRate(() -> System.out.print(summary()),
+                dumpSeconds, dumpSeconds, TimeUnit.SECONDS);
+    }
+
+    private void sample() {
+        long now = System.nanoTime();
+        long instructions = getInstructions();
+        instructionsPerSecond = (instructions - sampledInstructions) * 1e9 / (now - sampledAt);
+        sampledInstructions = instructions;
+        sampledAt = now;
+    }
+
+    /**
+     * A few lines for stdout: the rate, the most executed instruction
+     * kinds and the frame and render time percentiles.
+     */
+    String summary() {
+        long total = getInstructions();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Metrics: %,d instructions, %,.0f IPS%n", total, instructionsPerSecond));
+
+        Integer[] order = new Integer[KINDS.length];
+        for (int k = 0; k < order.length; k++) {
+            order[k] = k;
+        }
+        Arrays.sort(order, Comparator.comparingLong((Integer k) -> counts[k]).reversed());
+        sb.append("  Top opcodes:");
+        for (int k = 0; k < 8 && counts[order[k]] > 0; k++) {
+            sb.append(String.format(" %s %.1f%%", KINDS[order[k]], 100.0 * counts[order[k]] / total));
+        }
+        sb.append(String.format("%n"));
+        appendTimes(sb, "Frame time", frameTime);
+        appendTimes(sb, "Render time", renderTime);
+        return sb.toString();
+    }
+
+    private static void appendTimes(StringBuilder sb, String label, Histogram h) {
+        if (h.count() == 0) {
+            return;
+        }
+        sb.append(String.format("  %s ms: p50 %.3f p90 %.3f p99 %.3f max %.3f (%d frames)%n", label,
+                h.percentile(50) / 1e6, h.percentile(90) / 1e6, h.percentile(99) / 1e6,
+                h.max() / 1e6, h.count()));
+    }
+
+    @Override
+    public long getInstructions() {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    @Override
+    public double getInstructionsPerSecond() {
+        return instructionsPerSecond;
+    }
+
+    @Override
+    public Map<String, Long> getOpcodeCounts() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (int k = 0; k < KINDS.length; k++) {
+            result.put(KINDS[k], counts[k]);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getFrameTimeMillis() {
+        return millis(frameTime);
+    }
+
+    @Override
+    public Map<String, Double> getRenderTimeMillis() {
+        return millis(renderTime);
+    }
+
+    private static Map<String, Double> millis(Histogram h) {
+        Map<String, Double> result = new LinkedHashMap<>();
+        result.put("p50", h.percentile(50) / 1e6);
+        result.put("p90", h.percentile(90) / 1e6);
+        result.put("p99", h.percentile(99) / 1e6);
+        result.put("max", h.max() / 1e6);
+        result.put("mean", h.mean() / 1e6);
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(counts, 0);
+        frameTime.reset();
+        renderTime.reset();
+    }
+
+    /**
+     * Stop sampling and unregister the MXBean.
+     */
+    @Override
+    public void close() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+        }
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            // Nothing registered, nothing to undo
+        }
+    }
+
+    /**
+     * The instruction kind an opcode decodes to, following OpcodeTable.resolve.
+     */
+    static String kindOf(int opcode) {
+        switch (opcode & 0xF000) {
+            case 0x0000:
+                return opcode == 0x00E0 ? "00E0" : opcode == 0x00EE ? "00EE" : "0nnn";
+            case 0x1000:
+                return "1nnn";
+            case 0x2000:
+                return "2nnn";
+            case 0x3000:
+                return "3xkk";
+            case 0x4000:
+                return "4xkk";
+            case 0x5000:
+                return "5xy0";
+            case 0x6000:
+                return "6xkk";
+            case 0x7000:
+                return "7xkk";
+            case 0x8000:
+                String arithmetic = "8xy" + Integer.toHexString(opcode & 0xF).toUpperCase();
+                return Arrays.asList(KINDS).contains(arithmetic) ? arithmetic : "unknown";
+            case 0x9000:
+                return (opcode & 0xF) == 0 ? "9xy0" : "unknown";
+            case 0xA000:
+                return "Annn";
+            case 0xB000:
+                return "Bnnn";
+            case 0xC000:
+                return "Cxkk";
+            case 0xD000:
+                return "Dxyn";
+            case 0xE000:
+                return (opcode & 0xFF) == 0x9E ? "Ex9E" : (opcode & 0xFF) == 0xA1 ? "ExA1" : "unknown";
+            default:
+                String misc = String.format("Fx%02X", opcode & 0xFF);
+                return Arrays.asList(KINDS).contains(misc) ? misc : "unknown";
+        }
+    }
+}
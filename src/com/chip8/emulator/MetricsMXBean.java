@@ -0,0 +1,34 @@
+package com.chip8.emulator;
+
+import java.util.Map;
+
+/**
+ * The management interface of Metrics, registered as
+ * com.chip8.emulator:type=Metrics. Durations are in milliseconds.
+ */
+public interface MetricsMXBean {
+
+    long getInstructions();
+
+    /**
+     * Measured over the last second.
+     */
+    double getInstructionsPerSecond();
+
+    /**
+     * Executions per instruction kind, such as 8xy4 or Dxyn.
+     */
+    Map<String, Long> getOpcodeCounts();
+
+    /**
+     * p50, p90, p99, max and mean of the time between presented frames.
+     */
+    Map<String, Double> getFrameTimeMillis();
+
+    /**
+     * p50, p90, p99, max and mean of the time taken to present a frame.
+     */
+    Map<String, Double> getRenderTimeMillis();
+
+    void reset();
+}
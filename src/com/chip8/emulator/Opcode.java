@@ -0,0 +1,27 @@
+package com.chip8.emulator;
+
+/**
+ * An opcode with its handler and every operand field already extracted,
+ * so an instruction never has to mask and shift the raw opcode again.
+ * Instances are immutable and shared by all machines.
+ */
+final class Opcode {
+
+    final int opcode;
+    final Instruction handler;
+    final int x;
+    final int y;
+    final int n;
+    final int kk;
+    final int nnn;
+
+    Opcode(int opcode, Instruction handler) {
+        this.opcode = opcode;
+        this.handler = handler;
+        x = (opcode & 0x0F00) >> 8;
+        y = (opcode & 0x00F0) >> 4;
+        n = opcode & 0x000F;
+        kk = opcode & 0x00FF;
+        nnn = opcode & 0x0FFF;
+    }
+}
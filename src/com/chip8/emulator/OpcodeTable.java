@@ -0,0 +1,127 @@
+package com.chip8.emulator;
+
+/**
+ * Maps every 16 bit opcode straight to its handler and decoded operands.
+ * The table is built once when the class is loaded, so dispatching an
+ * instruction is a single array load instead of a walk down a chain of
+ * masked comparisons.
+ */
+class OpcodeTable {
+
+    /**
+     * Opcodes that match no instruction are ignored, as they always were.
+     */
+    static final Instruction NOP = (m, op) -> { };
+
+    static final Opcode[] TABLE = new Opcode[0x10000];
+
+    static {
+        for (int opcode = 0; opcode < TABLE.length; opcode++) {
+            TABLE[opcode] = new Opcode(opcode, resolve(opcode));
+        }
+    }
+
+    /**
+     * Using bit-masking of the opcode determine the
+     * appropriate method for the given opcode. This is the original
+     * decoder chain; it now only runs while the table is built.
+     */
+    static Instruction resolve(int opcode) {
+        if ((opcode & 0xF000) == 0x0000) {
+            if ((opcode & 0xFFFF) == 0x00E0) {
+                return Instructions::i00E0;
+            } else if ((opcode & 0xFFFF) == 0x00EE) {
+                return Instructions::i00EE;
+            } else {
+                return Instructions::i0nnn;
+            }
+        } else if ((opcode & 0xF000) == 0x1000) {
+            return Instructions::i1nnn;
+        } else if ((opcode & 0xF000) == 0x2000) {
+            return Instructions::i2nnn;
+        } else if ((opcode & 0xF000) == 0x3000) {
+            return Instructions::i3xkk;
+        } else if ((opcode & 0xF000) == 0x4000) {
+            return Instructions::i4xkk;
+        } else if ((opcode & 0xF000) == 0x5000) {
+            return Instructions::i5xy0;
+        } else if ((opcode & 0xF000) == 0x6000) {
+            return Instructions::i6xkk;
+        } else if ((opcode & 0xF000) == 0x7000) {
+            return Instructions::i7xkk;
+        } else if ((opcode & 0xF000) == 0x8000) {
+            return resolve8(opcode & 0x000F);
+        } else if ((opcode & 0xF00F) == 0x9000) {
+            return Instructions::i9xy0;
+        } else if ((opcode & 0xF000) == 0xA000) {
+            return Instructions::iAnnn;
+        } else if ((opcode & 0xF000) == 0xB000) {
+            return Instructions::iBnnn;
+        } else if ((opcode & 0xF000) == 0xC000) {
+            return Instructions::iCxkk;
+        } else if ((opcode & 0xF000) == 0xD000) {
+            return Instructions::iDxyn;
+        } else if ((opcode & 0xF0FF) == 0xE09E) {
+            return Instructions::iEx9E;
+        } else if ((opcode & 0xF0FF) == 0xE0A1) {
+            return Instructions::iExA1;
+        } else if ((opcode & 0xF000) == 0xF000) {
+            return resolveF(opcode & 0x00FF);
+        }
+        return NOP;
+    }
+
+    /**
+     * Simplification method used to determine which 0x8000
+     * Instruction to use
+     */
+    private static Instruction resolve8(int lsBits) {
+        if (lsBits == 0) {
+            return Instructions::i8xy0;
+        } else if (lsBits == 1) {
+            return Instructions::i8xy1;
+        } else if (lsBits == 2) {
+            return Instructions::i8xy2;
+        } else if (lsBits == 3) {
+            return Instructions::i8xy3;
+        } else if (lsBits == 4) {
+            return Instructions::i8xy4;
+        } else if (lsBits == 5) {
+            return Instructions::i8xy5;
+        } else if (lsBits == 6) {
+            return Instructions::i8xy6;
+        } else if (lsBits == 7) {
+            return Instructions::i8xy7;
+        } else if (lsBits == 0xE) {
+            return Instructions::i8xyE;
+        }
+        return NOP;
+    }
+
+    /**
+     * Simplification method used to determine which 0xF000
+     * Instruction to use
+     */
+    private static Instruction resolveF(int lsByte) {
+        if (lsByte == 0x07) {
+            return Instructions::iFx07;
+        } else if (lsByte == 0x0A) {
+            return Instructions::iFx0A;
+        } else if (lsByte == 0x15) {
+            return Instructions::iFx15;
+        } else if (lsByte == 0x18) {
+            return Instructions::iFx18;
+        } else if (lsByte == 0x1E) {
+            return Instructions::iFx1E;
+        } else if (lsByte == 0x29) {
+            return Instructions::iFx29;
+        } else if (lsByte == 0x33) {
+            return Instructions::iFx33;
+        } else if (lsByte == 0x55) {
+            return Instructions::iFx55;
+        } else if (lsByte == 0x65) {
+            return Instructions::iFx65;
+        }
+        return NOP;
+    }
+}
@@ -0,0 +1,198 @@
+package com.chip8.emulator;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds where a ROM spends its cycles. As the machine's Tracer it keeps a
+ * histogram of pc and follows 2nnn and 00EE to build a call tree, charging
+ * each sample to the subroutine path that was running at the time.
+ *
+ * Calls and returns are followed on every instruction, but only every
+ * sampleEvery-th instruction is counted, which keeps long runs cheap. The
+ * call tree is capped at MAX_DEPTH; deeper calls are charged to the
+ * deepest frame kept.
+ *
+ * The report lists the hottest addresses and subroutines. The collapsed
+ * stack file has one "main;sub_2A4;sub_31C count" line per call path, the
+ * input format of flamegraph.pl and speedscope.
+ */
+final class Profiler implements Tracer {
+
+    private static final int MAX_DEPTH = 64;
+    private static final int ROOT = 0;
+
+    private final int sampleEvery;
+    private int untilSample;
+    private final long[] pcSamples = new long[4096];
+    private long samples;
+
+    // The call tree: node n is a call to routine[n] from parent[n]
+    private final Map<Long, Integer> children = new HashMap<>();
+    private final List<Integer> parent = new ArrayList<>();
+    private final List<Integer> routine = new ArrayList<>();
+    private long[] selfSamples = new long[64];
+    private int current = ROOT;
+    private int depth;
+    private int overflow;
+
+    Profiler(int sampleEvery) {
+        this.sampleEvery = Math.max(1, sampleEvery);
+        untilSample = this.sampleEvery;
+        parent.add(-1);
+        routine.add(-1);
+    }
+
+    @Override
+    public void instruction(Chip8Machine m, int pc, Opcode op) {
+        if (--untilSample == 0) {
+            untilSample = sampleEvery;
+            pcSamples[pc]++;
+            selfSamples[current]++;
+            samples++;
+        }
+        if ((op.opcode & 0xF000) == 0x2000) {
+            enter(op.nnn);
+        } else if (op.opcode == 0x00EE) {
+            leave();
+        }
+    }
+
+    private void enter(int address) {
+        if (depth == MAX_DEPTH) {
+            overflow++;
+            return;
+        }
+        depth++;
+        long key = ((long) current << 12) | address;
+        Integer child = children.get(key);
+        if (child == null) {
+            child = parent.size();
+            children.put(key, child);
+            parent.add(current);
+            routine.add(address);
+            if (child == selfSamples.length) {
+                selfSamples = Arrays.copyOf(selfSamples, child * 2);
+            }
+        }
+        current = child;
+    }
+
+    private void leave() {
+        if (overflow > 0) {
+            overflow--;
+        } else if (depth > 0) {
+            depth--;
+            current = parent.get(current);
+        }
+    }
+
+    long samples() {
+        return samples;
+    }
+
+    /**
+     * Print the hottest addresses and the subroutines by self and total
+     * samples, where total includes everything they called.
+     */
+    void report(Chip8Machine m, PrintWriter out, int limit) {
+        out.printf("Profile: %,d samples, one every %d instructions%n", samples, sampleEvery);
+        if (samples == 0) {
+            out.flush();
+            return;
+        }
+
+        Integer[] pcs = new Integer[pcSamples.length];
+        for (int pc = 0; pc < pcs.length; pc++) {
+            pcs[pc] = pc;
+        }
+        Arrays.sort(pcs, (a, b) -> Long.compare(pcSamples[b], pcSamples[a]));
+        out.println("  Hot addresses:");
+        for (int k = 0; k < limit && pcSamples[pcs[k]] > 0; k++) {
+            int pc = pcs[k];
+            out.printf("    %03X  %04X  %,12d  %5.1f%%%n", pc, BlockCompiler.word(m.memory, pc),
+                    pcSamples[pc], 100.0 * pcSamples[pc] / samples);
+        }
+
+        Map<Integer, long[]> routines = new LinkedHashMap<>();
+        long[] totals = totals();
+        for (int node = 0; node < parent.size(); node++) {
+            long[] entry = routines.computeIfAbsent(routine.get(node), r -> new long[2]);
+            entry[0] += selfSamples[node];
+            if (!calledAbove(node)) {
+                entry[1] += totals[node];
+            }
+        }
+        List<Map.Entry<Integer, long[]>> sorted = new ArrayList<>(routines.entrySet());
+        sorted.sort((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]));
+        out.println("  Subroutines:         self          total");
+        for (int k = 0; k < limit && k < sorted.size(); k++) {
+            long[] entry = sorted.get(k).getValue();
+            out.printf("    %-8s %,12d %5.1f%% %,12d %5.1f%%%n", name(sorted.get(k).getKey()),
+                    entry[0], 100.0 * entry[0] / samples, entry[1], 100.0 * entry[1] / samples);
+        }
+        out.flush();
+    }
+
+    /**
+     * Write one line per call path with samples, in collapsed stack format.
+     */
+    void writeCollapsed(Path path) throws IOException {
+        try (Writer out = Files.newBufferedWriter(path)) {
+            for (int node = 0; node < parent.size(); node++) {
+                if (selfSamples[node] > 0) {
+                    out.write(stack(node));
+                    out.write(' ');
+                    out.write(Long.toString(selfSamples[node]));
+                    out.write('\n');
+                }
+            }
+        }
+    }
+
+    /**
+     * Samples in each node and everything below it. Children are always
+     * created after their parent, so one backwards pass adds them up.
+     */
+    private long[] totals() {
+        long[] totals = Arrays.copyOf(selfSamples, parent.size());
+        for (int node = parent.size() - 1; node > ROOT; node--) {
+            totals[parent.get(node)] += totals[node];
+        }
+        return totals;
+    }
+
+    /**
+     * Whether the routine of node is already on the path above it, in
+     * which case its total is counted at the outermost call only.
+     */
+    private boolean calledAbove(int node) {
+        int r = routine.get(node);
+        for (int up = parent.get(node); up > ROOT; up = parent.get(up)) {
+            if (routine.get(up) == r) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String stack(int node) {
+        if (node == ROOT) {
+            return name(-1);
+        }
+        return stack(parent.get(node)) + ";" + name(routine.get(node));
+    }
+
+    private static String name(int routine) {
+        return routine < 0 ? "main" : String.format("sub_%03X", routine);
+    }
+}
@@ -0,0 +1,68 @@
+package com.chip8.emulator;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * Scales the machine display into an off-screen image. Pixels are written
+ * straight into the image's backing int[] and only the rows the machine
+ * reports as changed are redrawn, so a static screen costs nothing.
+ */
+class Renderer {
+
+    private static final int WHITE = 0xFFFFFF;
+    private static final int BLACK = 0x000000;
+
+    private final int scale;
+    private final int width;
+    private final BufferedImage image;
+    private final int[] pixels;
+    private boolean firstFrame;
+
+    Renderer(int scale) {
+        this.scale = scale;
+        width = 64 * scale;
+        image = new BufferedImage(width, 32 * scale, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        firstFrame = true;
+    }
+
+    BufferedImage image() {
+        return image;
+    }
+
+    /**
+     * Redraw the rows that changed since the last call.
+     * Returns false, leaving the image untouched, if nothing changed.
+     */
+    boolean render(Chip8Machine machine) {
+        int top;
+        int bottom;
+        if (firstFrame) {
+            top = 0;
+            bottom = 31;
+            firstFrame = false;
+        } else if (machine.isFrameDirty()) {
+            top = machine.dirtyTop();
+            bottom = machine.dirtyBottom();
+        } else {
+            return false;
+        }
+        machine.clearDirty();
+
+        long[] display = machine.displayGrid;
+        for (int y = top; y <= bottom; y++) {
+            int line = y * scale * width;
+            long row = display[y];
+            for (int x = 0; x < 64; x++) {
+                int colour = (row << x) < 0 ? WHITE : BLACK;
+                Arrays.fill(pixels, line + x * scale, line + (x + 1) * scale, colour);
+            }
+            for (int copy = 1; copy < scale; copy++) {
+                System.arraycopy(pixels, line, pixels, line + copy * width, width);
+            }
+        }
+        return true;
+    }
+}
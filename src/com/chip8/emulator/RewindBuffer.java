@@ -0,0 +1,231 @@
+package com.chip8.emulator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A bounded history of per-frame machine states for scrubbing backwards.
+ *
+ * Each frame is taken as a SaveState and stored as the XOR against the
+ * previous frame, so everything that did not change is zero. Those zeros
+ * are run-length encoded, which leaves a typical frame at a few dozen
+ * bytes. Every KEYFRAME_INTERVAL frames the full state is stored instead,
+ * so reaching any frame means decoding one keyframe plus at most
+ * KEYFRAME_INTERVAL - 1 deltas.
+ *
+ * Encoded frames live in one fixed byte arena used as a ring, next to a
+ * fixed ring of frame offsets. When either is full the oldest keyframe
+ * group is dropped, so memory use never grows after construction and
+ * recording allocates nothing.
+ */
+final class RewindBuffer {
+
+    static final int KEYFRAME_INTERVAL = 60;
+
+    private final byte[] arena;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final boolean[] keyframes;
+
+    // The oldest frame's ring index, and where the next frame is written
+    private int oldest;
+    private int count;
+    private int sinceKeyframe;
+    private int writeOffset;
+
+    private ByteBuffer previous = ByteBuffer.allocate(SaveState.SIZE);
+    private ByteBuffer current = ByteBuffer.allocate(SaveState.SIZE);
+    private final byte[] scratch = new byte[maxEncodedSize()];
+
+    /**
+     * Keep up to frames frames in at most bytes bytes of encoded state.
+     */
+    RewindBuffer(int frames, int bytes) {
+        // The newest keyframe group must always fit, however badly it compresses
+        if (frames < 2 * KEYFRAME_INTERVAL) {
+            throw new IllegalArgumentException("Rewind buffer too short: " + frames + " frames");
+        }
+        if (bytes < (KEYFRAME_INTERVAL + 1) * maxEncodedSize()) {
+            throw new IllegalArgumentException("Rewind arena too small: " + bytes + " bytes");
+        }
+        arena = new byte[bytes];
+        offsets = new int[frames];
+        lengths = new int[frames];
+        keyframes = new boolean[frames];
+    }
+
+    int frames() {
+        return count;
+    }
+
+    /**
+     * Append the machine's current state as the newest frame.
+     */
+    void record(Chip8Machine m) {
+        current.clear();
+        SaveState.save(m, current);
+
+        boolean keyframe = count == 0 || sinceKeyframe == KEYFRAME_INTERVAL - 1;
+        int length;
+        if (keyframe) {
+            System.arraycopy(current.array(), 0, scratch, 0, SaveState.SIZE);
+            length = SaveState.SIZE;
+            sinceKeyframe = 0;
+        } else {
+            length = encodeDelta(previous.array(), current.array(), scratch);
+            sinceKeyframe++;
+        }
+        append(scratch, length, keyframe);
+
+        ByteBuffer swap = previous;
+        previous = current;
+        current = swap;
+    }
+
+    /**
+     * Step the machine back by up to frames frames and forget everything
+     * newer. Returns how many frames it actually went back, which is
+     * less than asked once the oldest frame held is reached.
+     */
+    int rewind(Chip8Machine m, int frames) {
+        if (count == 0) {
+            return 0;
+        }
+        int back = Math.min(frames, count - 1);
+        int target = count - 1 - back;
+
+        int key = target;
+        while (!keyframes[index(key)]) {
+            key--;
+        }
+        byte[] state = previous.array();
+        System.arraycopy(arena, offsets[index(key)], state, 0, SaveState.SIZE);
+        for (int f = key + 1; f <= target; f++) {
+            decodeDelta(arena, offsets[index(f)], lengths[index(f)], state);
+        }
+
+        count = target + 1;
+        sinceKeyframe = target - key;
+        writeOffset = offsets[index(target)] + lengths[index(target)];
+        previous.clear();
+        SaveState.restore(m, previous);
+        return back;
+    }
+
+    private void append(byte[] data, int length, boolean keyframe) {
+        int at = writeOffset + length <= arena.length ? writeOffset : 0;
+        while (count > 0 && (count == offsets.length || overlapsLive(at, length))) {
+            dropOldestGroup();
+        }
+        int slot = index(count);
+        System.arraycopy(data, 0, arena, at, length);
+        offsets[slot] = at;
+        lengths[slot] = length;
+        keyframes[slot] = keyframe;
+        writeOffset = at + length;
+        count++;
+    }
+
+    /**
+     * Whether writing length bytes at offset would overwrite a held frame.
+     */
+    private boolean overlapsLive(int offset, int length) {
+        int start = offsets[oldest];
+        int newest = index(count - 1);
+        int end = offsets[newest] + lengths[newest];
+        if (start < end) {
+            return offset < end && offset + length > start;
+        }
+        // Held frames wrap around: [start, arena end) plus [0, end)
+        return offset < end || offset + length > start;
+    }
+
+    /**
+     * Drop the oldest keyframe and the deltas that depend on it.
+     */
+    private void dropOldestGroup() {
+        do {
+            oldest = (oldest + 1) % offsets.length;
+            count--;
+        } while (count > 0 && !keyframes[oldest]);
+        if (count == 0) {
+            oldest = 0;
+        }
+    }
+
+    private int index(int frame) {
+        return (oldest + frame) % offsets.length;
+    }
+
+    /**
+     * Encode after XOR before as pairs of a zero run and a literal run,
+     * each length a varint, followed by the literal bytes.
+     */
+    static int encodeDelta(byte[] before, byte[] after, byte[] out) {
+        int length = 0;
+        int p = 0;
+        int size = before.length;
+        while (p < size) {
+            int zeros = p;
+            while (p < size && before[p] == after[p]) {
+                p++;
+            }
+            zeros = p - zeros;
+            int literal = p;
+            while (p < size && before[p] != after[p]) {
+                p++;
+            }
+            length = putVarint(out, length, zeros);
+            length = putVarint(out, length, p - literal);
+            for (int b = literal; b < p; b++) {
+                out[length++] = (byte) (before[b] ^ after[b]);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * XOR the delta encoded at in[offset, offset + length) into state.
+     */
+    static void decodeDelta(byte[] in, int offset, int length, byte[] state) {
+        int end = offset + length;
+        int p = 0;
+        while (offset < end) {
+            int zeros = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = in[offset++];
+                zeros |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            int literal = 0;
+            shift = 0;
+            do {
+                b = in[offset++];
+                literal |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            p += zeros;
+            for (int k = 0; k < literal; k++) {
+                state[p++] ^= in[offset++];
+            }
+        }
+    }
+
+    private static int putVarint(byte[] out, int at, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[at++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[at++] = (byte) value;
+        return at;
+    }
+
+    /**
+     * The worst case delta alternates single changed and unchanged bytes,
+     * costing three bytes for every two.
+     */
+    private static int maxEncodedSize() {
+        return SaveState.SIZE * 2 + 8;
+    }
+}
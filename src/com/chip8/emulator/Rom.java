@@ -0,0 +1,37 @@
+package com.chip8.emulator;
+
+/**
+ * A program image as loaded by RomLibrary. Roms with the same contents are
+ * the same object however many files they were found in, and the program
+ * array is shared, so it must not be modified.
+ */
+final class Rom {
+
+    private final String name;
+    private final byte[] program;
+    private final String hash;
+
+    Rom(String name, byte[] program, String hash) {
+        this.name = name;
+        this.program = program;
+        this.hash = hash;
+    }
+
+    /**
+     * Where the ROM was first found, a path or archive!entry.
+     */
+    String name() {
+        return name;
+    }
+
+    byte[] program() {
+        return program;
+    }
+
+    /**
+     * The SHA-256 of the program as hex, which identifies the ROM.
+     */
+    String hash() {
+        return hash;
+    }
+}
@@ -0,0 +1,278 @@
+package com.chip8.emulator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Loads ROMs from files, directories and zip archives and caches them.
+ *
+ * Plain files are read with one FileChannel read. Archives are mapped and
+ * their central directory walked in place, so only the entries that are
+ * ROMs are ever touched; stored entries are copied straight out of the
+ * mapping and deflated ones inflated from it.
+ *
+ * The cache has two levels. A file whose size and modification time have
+ * not changed is not read again at all, and every ROM is interned by the
+ * SHA-256 of its contents, so the same game found in many files or
+ * archives is held and decoded once. The library is safe to share
+ * between threads.
+ */
+final class RomLibrary {
+
+    /**
+     * Programs are loaded at 0x200, so anything larger cannot be a ROM.
+     */
+    static final int MAX_ROM_SIZE = 4096 - 0x200;
+
+    /**
+     * Extensions taken for ROMs when walking a directory or an archive.
+     * Most ROMs have none at all; anything else, such as .c8i recordings
+     * or a goldens file kept next to the ROMs, is skipped.
+     */
+    private static final Set<String> ROM_EXTENSIONS = Set.of("ch8", "c8", "rom");
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+
+    private final Map<String, Rom> byHash = new ConcurrentHashMap<>();
+    private final Map<Path, Cached> byPath = new ConcurrentHashMap<>();
+
+    /**
+     * What was found in a file the last time it was read.
+     */
+    private static final class Cached {
+        final long size;
+        final long modified;
+        final List<Rom> roms;
+
+        Cached(long size, long modified, List<Rom> roms) {
+            this.size = size;
+            this.modified = modified;
+            this.roms = roms;
+        }
+    }
+
+    /**
+     * Every ROM at path: the file itself, each ROM in a zip archive, or
+     * everything under a directory in name order. When walking a directory
+     * or archive, files too large to be a ROM or without a ROM extension
+     * are skipped; a file named directly is loaded whatever its name, and
+     * rejected if too large.
+     */
+    List<Rom> load(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return loadFile(path, true);
+        }
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(path)) {
+            files = walk.filter(Files::isRegularFile)
+                    .filter(file -> isZip(file) || isRomName(file.getFileName().toString()))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        List<Rom> roms = new ArrayList<>();
+        for (Path file : files) {
+            roms.addAll(loadFile(file, false));
+        }
+        return roms;
+    }
+
+    /**
+     * The number of distinct ROMs held.
+     */
+    int size() {
+        return byHash.size();
+    }
+
+    private List<Rom> loadFile(Path file, boolean strict) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        long size = Files.size(key);
+        long modified = Files.getLastModifiedTime(key).toMillis();
+        Cached cached = byPath.get(key);
+        if (cached != null && cached.size == size && cached.modified == modified) {
+            return cached.roms;
+        }
+
+        List<Rom> roms;
+        if (isZip(key)) {
+            roms = readZip(key);
+        } else if (size > MAX_ROM_SIZE) {
+            if (strict) {
+                throw new IOException(file + " is " + size + " bytes, too large for a ROM");
+            }
+            roms = Collections.emptyList();
+        } else {
+            roms = Collections.singletonList(intern(file.toString(), readFile(key, (int) size)));
+        }
+        byPath.put(key, new Cached(size, modified, roms));
+        return roms;
+    }
+
+    private static byte[] readFile(Path file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading until the whole file is in
+            }
+            if (buffer.hasRemaining()) {
+                throw new IOException(file + " changed while being read");
+            }
+            return buffer.array();
+        }
+    }
+
+    /**
+     * Whether the last part of name has no extension or a ROM extension.
+     */
+    static boolean isRomName(String name) {
+        String base = name.substring(name.lastIndexOf('/') + 1);
+        int dot = base.lastIndexOf('.');
+        return dot <= 0 || ROM_EXTENSIONS.contains(base.substring(dot + 1).toLowerCase());
+    }
+
+    private static boolean isZip(Path file) {
+        return file.getFileName().toString().toLowerCase().endsWith(".zip");
+    }
+
+    /**
+     * Walk the central directory of a mapped zip archive and load every
+     * entry small enough to be a ROM. Zip64 archives are not supported;
+     * nobody needs four gigabytes of Chip8 games.
+     */
+    private List<Rom> readZip(Path archive) throws IOException {
+        try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ)) {
+            MappedByteBuffer zip = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            zip.order(ByteOrder.LITTLE_ENDIAN);
+
+            int end = findEndOfCentralDirectory(zip);
+            if (end < 0) {
+                throw new IOException(archive + " is not a zip archive");
+            }
+            int entries = zip.getShort(end + 10) & 0xFFFF;
+            int entry = zip.getInt(end + 16);
+
+            List<Rom> roms = new ArrayList<>();
+            for (int n = 0; n < entries; n++) {
+                if (entry < 0 || entry + 46 > zip.limit() || zip.getInt(entry) != CENTRAL_HEADER) {
+                    throw new IOException(archive + " has a corrupt central directory");
+                }
+                int method = zip.getShort(entry + 10) & 0xFFFF;
+                int compressedSize = zip.getInt(entry + 20);
+                int size = zip.getInt(entry + 24);
+                int nameLength = zip.getShort(entry + 28) & 0xFFFF;
+                int extraLength = zip.getShort(entry + 30) & 0xFFFF;
+                int commentLength = zip.getShort(entry + 32) & 0xFFFF;
+                int local = zip.getInt(entry + 42);
+                String name = string(zip, entry + 46, nameLength);
+                entry += 46 + nameLength + extraLength + commentLength;
+
+                if (name.endsWith("/") || size <= 0 || size > MAX_ROM_SIZE || !isRomName(name)) {
+                    continue;
+                }
+                byte[] program = readEntry(archive, zip, local, method, compressedSize, size);
+                roms.add(intern(archive + "!" + name, program));
+            }
+            return roms;
+        }
+    }
+
+    private static int findEndOfCentralDirectory(ByteBuffer zip) {
+        // The record is 22 bytes plus a comment of up to 65535
+        int last = zip.limit() - 22;
+        int first = Math.max(0, last - 0xFFFF);
+        for (int p = last; p >= first; p--) {
+            if (zip.getInt(p) == END_OF_CENTRAL_DIRECTORY) {
+                return p;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] readEntry(Path archive, ByteBuffer zip, int local, int method,
+                                    int compressedSize, int size) throws IOException {
+        if (local < 0 || local + 30 > zip.limit() || zip.getInt(local) != LOCAL_HEADER) {
+            throw new IOException(archive + " has a corrupt local header");
+        }
+        int data = local + 30 + (zip.getShort(local + 26) & 0xFFFF) + (zip.getShort(local + 28) & 0xFFFF);
+        if (compressedSize < 0 || data + compressedSize > zip.limit()) {
+            throw new IOException(archive + " has a truncated entry");
+        }
+        ByteBuffer input = zip.duplicate().position(data).limit(data + compressedSize);
+
+        byte[] program = new byte[size];
+        if (method == 0) {
+            input.get(program, 0, Math.min(size, compressedSize));
+            return program;
+        }
+        if (method != 8) {
+            throw new IOException(archive + " uses unsupported compression method " + method);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(input);
+            int read = 0;
+            while (read < size && !inflater.finished()) {
+                int n = inflater.inflate(program, read, size - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != size) {
+                throw new IOException(archive + " has a corrupt compressed entry");
+            }
+            return program;
+        } catch (DataFormatException e) {
+            throw new IOException(archive + " has a corrupt compressed entry", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static String string(ByteBuffer zip, int at, int length) {
+        byte[] bytes = new byte[length];
+        zip.get(at, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The cached ROM with these contents, adding it under name if it is new.
+     */
+    private Rom intern(String name, byte[] program) {
+        String hash = sha256(program);
+        return byHash.computeIfAbsent(hash, h -> new Rom(name, program, h));
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
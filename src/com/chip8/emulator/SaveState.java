@@ -0,0 +1,124 @@
+package com.chip8.emulator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A versioned binary snapshot of a machine, SIZE bytes long:
+ *
+ *   magic "C8SS", version        4 + 2 bytes
+ *   pc, i                        4 bytes each
+ *   opcode                       2 bytes
+ *   sp, flags                    1 byte each
+ *   delay, sound                 4 bytes each
+ *   V0 to VF                     16 x 4 bytes
+ *   stack                        16 x 4 bytes
+ *   memory                       4096 bytes, one per address
+ *   display                      32 longs, one bit per pixel
+ *
+ * Every int field of the machine is saved as a full int: 7xkk, 8xy7 and
+ * 8xyE do not mask their results, Fx15 and Fx18 pass them on to the timers,
+ * and pc, I and the stack follow. Memory is bytes, since every write to it
+ * masks to a byte. The stack pointer is signed, 00EE can leave it at -1.
+ *
+ * Saving and restoring are plain buffer copies with no allocation, so they
+ * take microseconds. The keypad is input rather than machine state and is
+ * not saved.
+ */
+public final class SaveState {
+
+    static final int MAGIC = 0x43385353;
+    static final short VERSION = 3;
+    public static final int SIZE = 4 + 2 + 2 * 4 + 2 + 2 + 2 * 4 + 16 * 4 + 16 * 4 + 4096 + 32 * 8;
+
+    private static final int WAITING_FOR_KEY = 1;
+
+    private SaveState() {
+    }
+
+    /**
+     * Write the machine's state at the buffer's position and advance it by SIZE.
+     */
+    public static void save(Chip8Machine m, ByteBuffer out) {
+        out.putInt(MAGIC);
+        out.putShort(VERSION);
+        out.putInt(m.pc);
+        out.putInt(m.i);
+        out.putShort((short) m.opcode);
+        out.put((byte) m.stackPointer);
+        out.put((byte) (m.waitingForKey ? WAITING_FOR_KEY : 0));
+        out.putInt(m.delayTimer);
+        out.putInt(m.soundTimer);
+        for (int r = 0; r < 16; r++) {
+            out.putInt(m.gprs[r]);
+        }
+        for (int s = 0; s < 16; s++) {
+            out.putInt(m.stack[s]);
+        }
+        for (int a = 0; a < 4096; a++) {
+            out.put((byte) m.memory[a]);
+        }
+        for (int row = 0; row < 32; row++) {
+            out.putLong(m.displayGrid[row]);
+        }
+    }
+
+    public static byte[] save(Chip8Machine m) {
+        byte[] state = new byte[SIZE];
+        save(m, ByteBuffer.wrap(state));
+        return state;
+    }
+
+    /**
+     * Read a state written by save from the buffer's position into the
+     * machine and advance the buffer by SIZE. Only memory that differs is
+     * written, so predecoded and compiled code elsewhere survives.
+     */
+    public static void restore(Chip8Machine m, ByteBuffer in) {
+        int magic = in.getInt();
+        if (magic != MAGIC) {
+            throw new IllegalArgumentException("Not a save state");
+        }
+        short version = in.getShort();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported save state version " + version);
+        }
+        m.pc = in.getInt();
+        m.i = in.getInt();
+        m.opcode = in.getShort() & 0xFFFF;
+        m.stackPointer = in.get();
+        m.waitingForKey = (in.get() & WAITING_FOR_KEY) != 0;
+        m.delayTimer = in.getInt();
+        m.soundTimer = in.getInt();
+        for (int r = 0; r < 16; r++) {
+            m.gprs[r] = in.getInt();
+        }
+        for (int s = 0; s < 16; s++) {
+            m.stack[s] = in.getInt();
+        }
+        for (int a = 0; a < 4096; a++) {
+            int value = in.get() & 0xFF;
+            if (m.memory[a] != value) {
+                m.writeMemory(a, value);
+            }
+        }
+        for (int row = 0; row < 32; row++) {
+            m.displayGrid[row] = in.getLong();
+        }
+        m.markDirty(0, 31);
+    }
+
+    public static void restore(Chip8Machine m, byte[] state) {
+        restore(m, ByteBuffer.wrap(state));
+    }
+
+    public static void write(Chip8Machine m, Path path) throws IOException {
+        Files.write(path, save(m));
+    }
+
+    public static void read(Chip8Machine m, Path path) throws IOException {
+        restore(m, Files.readAllBytes(path));
+    }
+}
@@ -0,0 +1,308 @@
+package com.chip8.emulator;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces a machine in real time with three independent clocks: the CPU runs
+ * at a configurable number of instructions per second in short batches, the
+ * delay and sound timers tick at exactly 60 Hz, and frames are presented at
+ * their own rate.
+ *
+ * Every deadline is computed from a fixed origin rather than from the last
+ * wake-up, so sleep overshoot never accumulates into drift. If the thread
+ * falls more than MAX_LAG behind (a debugger, a long GC) the clocks are
+ * resynchronised instead of bursting to catch up.
+ *
+ * In turbo mode the CPU is not paced at all. Timers tick in emulated time so
+ * the game simply runs faster, frames are still capped at the frame rate,
+ * and the measured speed is reported to the sink once a second.
+ *
+ * When recording input, timers and keypad changes advance in emulated
+ * frames instead, so the session can be replayed exactly.
+ *
+ * While the program is blocked in Fx0A the scheduler parks until the next
+ * timer tick or frame instead of spinning; a key press unparks it at once.
+ * A delay timer wait loop is skipped to the end of the batch by the machine
+ * and parks the same way, since nothing can happen before the next tick.
+ */
+class Scheduler {
+
+    static final int TIMER_HZ = 60;
+    static final int DEFAULT_IPS = 600;
+    static final int DEFAULT_FPS = 60;
+
+    private static final long SECOND = 1_000_000_000L;
+    private static final long BATCH_NANOS = 1_000_000L;
+    private static final long MAX_LAG = 250_000_000L;
+    private static final long CLOCK_CHECK_INSTRUCTIONS = 4096;
+
+    private final Chip8Machine machine;
+    private final int instructionsPerSecond;
+    private final int framesPerSecond;
+    private final FrameSink sink;
+    private final boolean turbo;
+    private InputRecorder recorder;
+    private volatile boolean running;
+
+    Scheduler(Chip8Machine machine, int instructionsPerSecond, int framesPerSecond, FrameSink sink) {
+        this(machine, instructionsPerSecond, framesPerSecond, sink, false);
+    }
+
+    Scheduler(Chip8Machine machine, int instructionsPerSecond, int framesPerSecond, FrameSink sink,
+              boolean turbo) {
+        this.machine = machine;
+        this.instructionsPerSecond = instructionsPerSecond;
+        this.framesPerSecond = framesPerSecond;
+        this.sink = sink;
+        this.turbo = turbo;
+    }
+
+    void stop() {
+        running = false;
+    }
+
+    /**
+     * Record the session's input while running. Recording runs paced, with
+     * timers and input advancing in emulated frames, see runRecording.
+     */
+    void record(InputRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Run until the machine halts or stop is called.
+     */
+    void run() {
+        running = true;
+        machine.setKeyWaiter(Thread.currentThread());
+        if (recorder != null) {
+            runRecording();
+            return;
+        }
+        if (turbo) {
+            runTurbo();
+            return;
+        }
+        double instructionsPerNano = instructionsPerSecond / (double) SECOND;
+
+        long origin = System.nanoTime();
+        long executed = 0;
+        long ticks = 0;
+        long frames = 0;
+        long nextTick = origin + SECOND / TIMER_HZ;
+        long nextFrame = origin;
+
+        while (running && machine.isRunning()) {
+            long now = System.nanoTime();
+            if (now - nextTick > MAX_LAG) {
+                origin = now;
+                executed = 0;
+                ticks = 0;
+                frames = 0;
+                nextTick = origin + SECOND / TIMER_HZ;
+                nextFrame = origin;
+            }
+
+            long target = (long) ((now - origin) * instructionsPerNano);
+            if (target > executed) {
+                executed += machine.run(target - executed);
+                if (machine.isBlocked()) {
+                    // Fx0A is waiting: the CPU has nothing to do until a key arrives
+                    executed = target;
+                }
+            }
+
+            while (now - nextTick >= 0) {
+                machine.tickTimers();
+                ticks++;
+                nextTick = origin + (ticks + 1) * SECOND / TIMER_HZ;
+            }
+
+            if (now - nextFrame >= 0) {
+                sink.present(machine);
+                frames++;
+                nextFrame = origin + frames * SECOND / framesPerSecond;
+                if (now - nextFrame >= 0) {
+                    // Skip frames we are already too late for
+                    frames = (now - origin) * framesPerSecond / SECOND + 1;
+                    nextFrame = origin + frames * SECOND / framesPerSecond;
+                }
+            }
+
+            long next = Math.min(nextTick, nextFrame);
+            long wake = machine.isBlocked() || machine.isIdle() ? next : Math.min(now + BATCH_NANOS, next);
+            long wait = wake - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    /**
+     * Paced in real time like run, but the timers tick and the keypad is
+     * latched every instructionsPerSecond / 60 instructions rather than by
+     * the wall clock. Each emulated frame then starts at an exact instruction
+     * count with a known keypad, and InputReplay reproduces it with runFrame.
+     */
+    private void runRecording() {
+        long perTick = Math.max(1, instructionsPerSecond / TIMER_HZ);
+        double instructionsPerNano = instructionsPerSecond / (double) SECOND;
+        long maxBehind = (long) (MAX_LAG * instructionsPerNano);
+
+        machine.setLatched(true);
+        recorder.frame(machine.latchKeypad());
+
+        long origin = System.nanoTime();
+        long executed = 0;
+        long sinceTick = 0;
+        long frames = 0;
+        long nextFrame = origin;
+
+        while (running && machine.isRunning()) {
+            long now = System.nanoTime();
+            long target = (long) ((now - origin) * instructionsPerNano);
+            if (target - executed > maxBehind) {
+                origin = now - (long) (executed / instructionsPerNano);
+                target = executed;
+            }
+
+            while (executed < target && machine.isRunning()) {
+                long requested = Math.min(perTick - sinceTick, target - executed);
+                long batch = machine.run(requested);
+                if (batch < requested && machine.isBlocked()) {
+                    batch = requested;
+                }
+                executed += batch;
+                sinceTick += batch;
+                if (sinceTick == perTick) {
+                    machine.tickTimers();
+                    recorder.frame(machine.latchKeypad());
+                    sinceTick = 0;
+                }
+            }
+
+            if (now - nextFrame >= 0) {
+                sink.present(machine);
+                frames++;
+                nextFrame = origin + frames * SECOND / framesPerSecond;
+                if (now - nextFrame >= 0) {
+                    nextFrame = now + SECOND / framesPerSecond;
+                }
+            }
+
+            long wake = Math.min(now + BATCH_NANOS, nextFrame);
+            long wait = wake - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+        machine.setLatched(false);
+    }
+
+    /**
+     * Run the CPU flat out, looking at the clock only every
+     * CLOCK_CHECK_INSTRUCTIONS so nanoTime stays off the hot path.
+     */
+    private void runTurbo() {
+        long perTick = Math.max(1, instructionsPerSecond / TIMER_HZ);
+        long framePeriod = SECOND / framesPerSecond;
+
+        long now = System.nanoTime();
+        long nextFrame = now;
+        long nextReport = now + SECOND;
+        long reportStart = now;
+        long reportExecuted = 0;
+        long executed = 0;
+        long nextCheck = 0;
+
+        while (running && machine.isRunning()) {
+            long batch = machine.run(perTick);
+            executed += batch;
+            if (batch == perTick) {
+                machine.tickTimers();
+            } else if (machine.isBlocked()) {
+                // Nothing to run until a key is pressed; keep the timers in real time
+                machine.tickTimers();
+                LockSupport.parkNanos(SECOND / TIMER_HZ);
+                nextCheck = executed;
+            }
+            if (executed < nextCheck) {
+                continue;
+            }
+            nextCheck = executed + CLOCK_CHECK_INSTRUCTIONS;
+
+            now = System.nanoTime();
+            if (now - nextFrame >= 0) {
+                sink.present(machine);
+                nextFrame = now + framePeriod;
+            }
+            if (now - nextReport >= 0) {
+                long measured = (executed - reportExecuted) * SECOND / (now - reportStart);
+                sink.reportSpeed(measured, measured / (double) instructionsPerSecond);
+                reportStart = now;
+                reportExecuted = executed;
+                nextReport = now + SECOND;
+            }
+        }
+    }
+
+    /**
+     * Run as fast as possible in emulated time: the timers tick once for every
+     * instructionsPerSecond / 60 instructions. Used by headless runs and pools.
+     * Returns the number of instructions executed.
+     */
+    static long runUnpaced(Chip8Machine machine, long cycles, int instructionsPerSecond) {
+        long perTick = Math.max(1, instructionsPerSecond / TIMER_HZ);
+        long executed = 0;
+        while (executed < cycles && machine.isRunning()) {
+            long requested = Math.min(perTick, cycles - executed);
+            long batch = machine.run(requested);
+            if (batch < requested && machine.isBlocked()) {
+                // Waiting on Fx0A burns the rest of the tick, as a spinning CPU would
+                batch = requested;
+            }
+            executed += batch;
+            if (batch == perTick) {
+                machine.tickTimers();
+            }
+        }
+        return executed;
+    }
+
+    /**
+     * Run without a window in real time, one frame of instructions per timer
+     * tick, presenting every frame to sink, until cycles instructions have
+     * run or the machine halts. For headless runs whose output is timed,
+     * such as sound. Returns the instructions executed.
+     */
+    static long runRealTime(Chip8Machine machine, long cycles, int instructionsPerSecond, FrameSink sink) {
+        long perTick = Math.max(1, instructionsPerSecond / TIMER_HZ);
+        long origin = System.nanoTime();
+        long executed = 0;
+        for (long tick = 1; executed < cycles && machine.isRunning(); tick++) {
+            executed += runFrame(machine, Math.min(perTick, cycles - executed));
+            sink.present(machine);
+            long wait = origin + tick * SECOND / TIMER_HZ - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+        return executed;
+    }
+
+    /**
+     * Run one emulated frame of perTick instructions and tick the timers.
+     * A frame blocked in Fx0A counts as fully run. Returns the instructions
+     * it accounts for, which is less than perTick only if the machine halted.
+     */
+    static long runFrame(Chip8Machine machine, long perTick) {
+        long batch = machine.run(perTick);
+        if (batch < perTick && machine.isBlocked()) {
+            batch = perTick;
+        }
+        if (batch == perTick) {
+            machine.tickTimers();
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,154 @@
+package com.chip8.emulator;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.KeyEvent;
+
+class Screen extends JFrame implements FrameSink {
+
+    private static final int REWIND_SECONDS = 10;
+    private static final int REWIND_BYTES = 4 << 20;
+
+    private final int scale;
+    private final int windowWidth;
+    private final int windowHeight;
+
+    private final Chip8Machine machine;
+    private InputHandler input;
+    private Renderer renderer;
+    private RewindBuffer rewind;
+    private Metrics metrics;
+    private FrameCapture capture;
+    private Audio audio;
+    private Insets insets;
+
+    /**
+     * Window preferences, the window size is editable here.
+     * The machine state itself is owned by the Chip8Machine being shown.
+     */
+    Screen(Chip8Machine machine) {
+        this.machine = machine;
+        scale = 8;
+        windowWidth = 64 * scale;
+        windowHeight = 32 * scale;
+    }
+
+    /**
+     * Record frame and render times into metrics while running.
+     */
+    void instrument(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Hand every presented frame to capture while running.
+     */
+    void capture(FrameCapture capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Play the sound timer's tone on audio while running.
+     */
+    void sound(Audio audio) {
+        this.audio = audio;
+    }
+
+    /**
+     * Open the window and run the machine at the given instruction
+     * and frame rates until it halts. In turbo mode the instruction
+     * rate only sets the timer rate and the CPU runs unthrottled.
+     * The keypad is logged to recorder if it is not null. Rewinding
+     * is off while recording since the log could not reproduce it.
+     */
+    void run(int instructionsPerSecond, int framesPerSecond, boolean turbo, InputRecorder recorder) {
+        initializeJFrame();
+        if (recorder == null) {
+            int frames = Math.max(REWIND_SECONDS * framesPerSecond, 2 * RewindBuffer.KEYFRAME_INTERVAL);
+            rewind = new RewindBuffer(frames, REWIND_BYTES);
+        }
+        FrameSink sink = metrics != null ? metrics.instrument(this) : this;
+        Scheduler scheduler = new Scheduler(machine, instructionsPerSecond, framesPerSecond, sink, turbo);
+        if (recorder != null) {
+            scheduler.record(recorder);
+        }
+        scheduler.run();
+    }
+
+    /**
+     * Called by the scheduler once a frame: record the frame for rewinding,
+     * or while Backspace is held step back two frames, one to undo the
+     * frame just run and one to actually go back. Then update the sound,
+     * capture the frame if capturing, and draw the display if it changed. Keys reach the machine
+     * from the input handler as they are pressed.
+     */
+    @Override
+    public void present(Chip8Machine machine) {
+        if (rewind != null) {
+            if (input.isKeyDown(KeyEvent.VK_BACK_SPACE)) {
+                rewind.rewind(machine, 2);
+            } else {
+                rewind.record(machine);
+            }
+        }
+        if (audio != null) {
+            audio.update(machine);
+        }
+        if (capture != null) {
+            capture.frame(machine);
+        }
+        draw();
+    }
+
+    /**
+     * Initialize the JFrame, insets are used to ensure the size of the frame
+     * does not interfere with the OS window. This preserves a scale * (64,32)
+     * display to be used by the emulator.
+     */
+    private void initializeJFrame() {
+        setTitle("Chip8");
+        setSize(windowWidth, windowHeight);
+        setResizable(false);
+        setDefaultCloseOperation(EXIT_ON_CLOSE);
+        setVisible(true);
+
+        insets = getInsets();
+        setSize(insets.left + windowWidth + insets.right, insets.top + windowHeight + insets.bottom);
+
+        renderer = new Renderer(scale);
+        input = new InputHandler(this, machine);
+    }
+
+    /**
+     * Once a frame draw the display onto the screen.
+     * The renderer keeps the back buffer and only redraws it, and
+     * only then is it copied to the window, when the display changed.
+     */
+    private void draw() {
+        if (renderer.render(machine)) {
+            Graphics g = getGraphics();
+            g.drawImage(renderer.image(), insets.left, insets.top, this);
+            g.dispose();
+        }
+    }
+
+    /**
+     * Show the measured turbo speed in the title and on stdout.
+     */
+    @Override
+    public void reportSpeed(long instructionsPerSecond, double multiple) {
+        String speed = String.format("%,d IPS (%.1fx)", instructionsPerSecond, multiple);
+        setTitle("Chip8 - turbo " + speed);
+        System.out.println("Turbo: " + speed);
+    }
+
+    /**
+     * Repaint the last rendered frame when the window is exposed.
+     */
+    @Override
+    public void paint(Graphics g) {
+        if (renderer != null && insets != null) {
+            g.drawImage(renderer.image(), insets.left, insets.top, this);
+        }
+    }
+}
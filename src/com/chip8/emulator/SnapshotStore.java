@@ -0,0 +1,81 @@
+package com.chip8.emulator;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file of fixed-size save state slots mapped into memory. Saving or
+ * restoring a slot is a copy to or from the page cache, and only the slots
+ * actually touched are paged in, so a store can hold thousands of snapshots
+ * for little more than the cost of the ones in use.
+ *
+ * A slot that was never saved reads as zeros and is reported as empty.
+ */
+public class SnapshotStore implements AutoCloseable {
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int slots;
+
+    /**
+     * Open or create the store at path with room for the given number of slots.
+     * An existing file is grown if it is smaller, and its snapshots are kept.
+     */
+    public SnapshotStore(Path path, int slots) throws IOException {
+        if (slots <= 0 || (long) slots * SaveState.SIZE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Slot count out of range: " + slots);
+        }
+        this.slots = slots;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) slots * SaveState.SIZE);
+    }
+
+    public int slots() {
+        return slots;
+    }
+
+    public synchronized void save(int slot, Chip8Machine m) {
+        SaveState.save(m, at(slot));
+    }
+
+    /**
+     * Restore the machine from a slot. Throws IllegalStateException if
+     * nothing was ever saved there.
+     */
+    public synchronized void restore(int slot, Chip8Machine m) {
+        if (isEmpty(slot)) {
+            throw new IllegalStateException("Snapshot slot " + slot + " is empty");
+        }
+        SaveState.restore(m, at(slot));
+    }
+
+    public synchronized boolean isEmpty(int slot) {
+        return buffer.getInt(offset(slot)) != SaveState.MAGIC;
+    }
+
+    /**
+     * Flush written slots to the file and close it.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    private MappedByteBuffer at(int slot) {
+        int offset = offset(slot);
+        buffer.limit(offset + SaveState.SIZE).position(offset);
+        return buffer;
+    }
+
+    private int offset(int slot) {
+        if (slot < 0 || slot >= slots) {
+            throw new IndexOutOfBoundsException("Snapshot slot " + slot + " of " + slots);
+        }
+        return slot * SaveState.SIZE;
+    }
+}
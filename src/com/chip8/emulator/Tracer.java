@@ -0,0 +1,48 @@
+package com.chip8.emulator;
+
+/**
+ * Observes every instruction a machine executes, on the emulation thread.
+ * A machine without a tracer pays only a null check per instruction.
+ */
+interface Tracer {
+
+    /**
+     * Called just before the interpreter executes op at address pc.
+     */
+    void instruction(Chip8Machine m, int pc, Opcode op);
+
+    /**
+     * Called just before a compiled block of length instructions starting at
+     * start runs. Compiled blocks never branch midway, so by default this
+     * traces each of their instructions in turn as decoded from memory.
+     */
+    default void block(Chip8Machine m, int start, int length) {
+        for (int n = 0; n < length; n++) {
+            int pc = start + 2 * n;
+            instruction(m, pc, OpcodeTable.TABLE[BlockCompiler.word(m.memory, pc)]);
+        }
+    }
+
+    /**
+     * A tracer that passes everything to first and then to second,
+     * either of which may be null.
+     */
+    static Tracer chain(Tracer first, Tracer second) {
+        if (first == null || second == null) {
+            return first != null ? first : second;
+        }
+        return new Tracer() {
+            @Override
+            public void instruction(Chip8Machine m, int pc, Opcode op) {
+                first.instruction(m, pc, op);
+                second.instruction(m, pc, op);
+            }
+
+            @Override
+            public void block(Chip8Machine m, int start, int length) {
+                first.block(m, start, length);
+                second.block(m, start, length);
+            }
+        };
+    }
+}